@@ -0,0 +1,127 @@
+package org.wikidata.history.corhist;
+
+import org.eclipse.rdf4j.model.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoding shared by the binary corrections files and the rule stores.
+ * <p>
+ * Integers are unsigned LEB128 varints, strings their UTF-8 byte length then their bytes
+ * and terms a kind byte followed by their strings
+ * (IRI: the IRI, blank node: its id, typed literal: the label and the datatype IRI, language tagged literal: the label and the language tag).
+ */
+public final class BinaryCodec {
+
+  public static final byte IRI_TERM = 0;
+  public static final byte BNODE_TERM = 1;
+  public static final byte TYPED_LITERAL_TERM = 2;
+  public static final byte LANGUAGE_LITERAL_TERM = 3;
+
+  private BinaryCodec() {
+  }
+
+  public static void writeVarLong(OutputStream output, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      output.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    output.write((int) value);
+  }
+
+  public static void writeString(OutputStream output, String string) throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    writeVarLong(output, bytes.length);
+    output.write(bytes);
+  }
+
+  public static void writeTerm(OutputStream output, Value term) throws IOException {
+    if (term instanceof IRI) {
+      output.write(IRI_TERM);
+      writeString(output, term.stringValue());
+    } else if (term instanceof BNode) {
+      output.write(BNODE_TERM);
+      writeString(output, ((BNode) term).getID());
+    } else if (term instanceof Literal) {
+      Literal literal = (Literal) term;
+      if (literal.getLanguage().isPresent()) {
+        output.write(LANGUAGE_LITERAL_TERM);
+        writeString(output, literal.getLabel());
+        writeString(output, literal.getLanguage().get());
+      } else {
+        output.write(TYPED_LITERAL_TERM);
+        writeString(output, literal.getLabel());
+        writeString(output, literal.getDatatype().stringValue());
+      }
+    } else {
+      throw new IllegalArgumentException(term + " is not a known value");
+    }
+  }
+
+  /**
+   * Reads the encoded values from a sequence of bytes provided by {@link #readByte()}
+   */
+  public abstract static class Decoder {
+
+    protected abstract byte readByte();
+
+    /**
+     * Skips the given number of bytes. Implementations with random access should override it.
+     */
+    protected void skip(long length) {
+      for (long i = 0; i < length; i++) {
+        readByte();
+      }
+    }
+
+    public long readVarLong() {
+      long value = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = readByte();
+        value |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+    }
+
+    public String readString() {
+      byte[] bytes = new byte[(int) readVarLong()];
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = readByte();
+      }
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public void skipString() {
+      skip(readVarLong());
+    }
+
+    public Value readTerm(ValueFactory valueFactory) {
+      byte kind = readByte();
+      switch (kind) {
+        case IRI_TERM:
+          return valueFactory.createIRI(readString());
+        case BNODE_TERM:
+          return valueFactory.createBNode(readString());
+        case TYPED_LITERAL_TERM:
+          return valueFactory.createLiteral(readString(), valueFactory.createIRI(readString()));
+        case LANGUAGE_LITERAL_TERM:
+          return valueFactory.createLiteral(readString(), readString());
+        default:
+          throw new IllegalStateException("Unknown term kind: " + kind);
+      }
+    }
+
+    public void skipTerm() {
+      byte kind = readByte();
+      skipString();
+      if (kind == TYPED_LITERAL_TERM || kind == LANGUAGE_LITERAL_TERM) {
+        skipString();
+      }
+    }
+  }
+}
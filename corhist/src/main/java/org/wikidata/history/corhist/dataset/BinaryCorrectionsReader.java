@@ -0,0 +1,147 @@
+package org.wikidata.history.corhist.dataset;
+
+import org.eclipse.rdf4j.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.history.corhist.BinaryCodec;
+import org.wikidata.history.sparql.Vocabulary;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads corrections files written by {@link BinaryCorrectionsWriter}
+ */
+final class BinaryCorrectionsReader implements Iterator<ConstraintViolationCorrection>, Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BinaryCorrectionsReader.class);
+
+  private final DataInputStream input;
+  private final StreamDecoder decoder;
+  private final ValueFactory valueFactory;
+  private final Function<IRI, Optional<Constraint>> constraints;
+  private final Value[] terms;
+  private long remainingRecords;
+  private ConstraintViolationCorrection next;
+
+  private BinaryCorrectionsReader(DataInputStream input, ValueFactory valueFactory, Function<IRI, Optional<Constraint>> constraints) throws IOException {
+    this.input = input;
+    this.decoder = new StreamDecoder(input);
+    this.valueFactory = valueFactory;
+    this.constraints = constraints;
+
+    byte[] magic = new byte[CorrectionsFormat.BINARY_MAGIC.length];
+    input.readFully(magic);
+    if (!Arrays.equals(magic, CorrectionsFormat.BINARY_MAGIC)) {
+      throw new IOException("This is not a binary corrections file");
+    }
+    byte version = input.readByte();
+    if (version != CorrectionsFormat.BINARY_VERSION) {
+      throw new IOException("Not supported binary corrections file version: " + version);
+    }
+    try {
+      terms = new Value[(int) decoder.readVarLong()];
+      for (int i = 0; i < terms.length; i++) {
+        terms[i] = decoder.readTerm(valueFactory);
+      }
+      remainingRecords = decoder.readVarLong();
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  static Stream<ConstraintViolationCorrection> read(Path file, ValueFactory valueFactory, Function<IRI, Optional<Constraint>> constraints) throws IOException {
+    DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+    BinaryCorrectionsReader reader;
+    try {
+      reader = new BinaryCorrectionsReader(input, valueFactory, constraints);
+    } catch (IOException e) {
+      input.close();
+      throw e;
+    }
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(reader, Spliterator.ORDERED | Spliterator.NONNULL), false)
+            .onClose(() -> {
+              try {
+                reader.close();
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            });
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (next == null && remainingRecords > 0) {
+      next = readRecord();
+      remainingRecords--;
+    }
+    return next != null;
+  }
+
+  @Override
+  public ConstraintViolationCorrection next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    ConstraintViolationCorrection result = next;
+    next = null;
+    return result;
+  }
+
+  private ConstraintViolationCorrection readRecord() {
+    decoder.readVarLong(); //Record size, only useful to skip records
+    IRI constraintId = (IRI) terms[(int) decoder.readVarLong()];
+    IRI revision = valueFactory.createIRI(Vocabulary.REVISION_NAMESPACE, Long.toString(decoder.readVarLong()));
+    Statement target = valueFactory.createStatement(
+            (Resource) terms[(int) decoder.readVarLong()],
+            (IRI) terms[(int) decoder.readVarLong()],
+            terms[(int) decoder.readVarLong()]
+    );
+    int correctionSize = (int) decoder.readVarLong();
+    Set<Statement> correction = new HashSet<>();
+    for (int i = 0; i < correctionSize; i++) {
+      correction.add(valueFactory.createStatement(
+              (Resource) terms[(int) decoder.readVarLong()],
+              (IRI) terms[(int) decoder.readVarLong()],
+              terms[(int) decoder.readVarLong()],
+              (Resource) terms[(int) decoder.readVarLong()]
+      ));
+    }
+    Optional<Constraint> constraint = constraints.apply(constraintId);
+    if (!constraint.isPresent()) {
+      LOGGER.warn("Constraint " + constraintId + " not found");
+      return null;
+    }
+    return new ConstraintViolationCorrection(constraint.get(), target, correction, revision);
+  }
+
+  @Override
+  public void close() throws IOException {
+    input.close();
+  }
+
+  /**
+   * Decodes the values from the file stream, the read errors are thrown as {@link UncheckedIOException}
+   */
+  private static final class StreamDecoder extends BinaryCodec.Decoder {
+    private final DataInputStream input;
+
+    private StreamDecoder(DataInputStream input) {
+      this.input = input;
+    }
+
+    @Override
+    protected byte readByte() {
+      try {
+        return input.readByte();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
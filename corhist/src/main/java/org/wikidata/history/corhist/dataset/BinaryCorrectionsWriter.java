@@ -0,0 +1,87 @@
+package org.wikidata.history.corhist.dataset;
+
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.wikidata.history.corhist.BinaryCodec;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes corrections using the binary format.
+ * <p>
+ * Layout of a file (integers and terms are encoded with {@link BinaryCodec}):
+ * <ul>
+ * <li>the magic bytes "CVCB" and a version byte</li>
+ * <li>the number of terms then the terms</li>
+ * <li>the number of records then the records, each one is prefixed by its size in bytes and contains the constraint term,
+ * the revision id, the target triple terms, the number of correction quads and the quads terms</li>
+ * </ul>
+ * As the terms table is written first, the records are buffered in a temporary file until the writer is closed.
+ */
+final class BinaryCorrectionsWriter implements CorrectionsWriter {
+
+  private final Path file;
+  private final Path recordsFile;
+  private final DataOutputStream recordsOutput;
+  private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+  private final Map<Value, Integer> termIds = new HashMap<>();
+  private final List<Value> terms = new ArrayList<>();
+  private long recordsCount = 0;
+
+  BinaryCorrectionsWriter(Path file) throws IOException {
+    this.file = file;
+    this.recordsFile = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".records");
+    this.recordsOutput = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(recordsFile)));
+  }
+
+  @Override
+  public void write(ConstraintViolationCorrection correction) throws IOException {
+    recordBuffer.reset();
+    BinaryCodec.writeVarLong(recordBuffer, termId(correction.getConstraint().getId()));
+    BinaryCodec.writeVarLong(recordBuffer, Long.parseLong(correction.getCorrectionRevision().getLocalName()));
+    Statement target = correction.getTargetTriple();
+    BinaryCodec.writeVarLong(recordBuffer, termId(target.getSubject()));
+    BinaryCodec.writeVarLong(recordBuffer, termId(target.getPredicate()));
+    BinaryCodec.writeVarLong(recordBuffer, termId(target.getObject()));
+    BinaryCodec.writeVarLong(recordBuffer, correction.getCorrection().size());
+    for (Statement statement : correction.getCorrection()) {
+      BinaryCodec.writeVarLong(recordBuffer, termId(statement.getSubject()));
+      BinaryCodec.writeVarLong(recordBuffer, termId(statement.getPredicate()));
+      BinaryCodec.writeVarLong(recordBuffer, termId(statement.getObject()));
+      BinaryCodec.writeVarLong(recordBuffer, termId(statement.getContext()));
+    }
+    BinaryCodec.writeVarLong(recordsOutput, recordBuffer.size());
+    recordBuffer.writeTo(recordsOutput);
+    recordsCount++;
+  }
+
+  private int termId(Value term) {
+    return termIds.computeIfAbsent(term, k -> {
+      terms.add(k);
+      return terms.size() - 1;
+    });
+  }
+
+  @Override
+  public void close() throws IOException {
+    recordsOutput.close();
+    try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(file))) {
+      output.write(CorrectionsFormat.BINARY_MAGIC);
+      output.write(CorrectionsFormat.BINARY_VERSION);
+      BinaryCodec.writeVarLong(output, terms.size());
+      for (Value term : terms) {
+        BinaryCodec.writeTerm(output, term);
+      }
+      BinaryCodec.writeVarLong(output, recordsCount);
+      Files.copy(recordsFile, output);
+    } finally {
+      Files.delete(recordsFile);
+    }
+  }
+}
@@ -8,7 +8,9 @@ import org.eclipse.rdf4j.rio.ntriples.NTriplesUtil;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -26,16 +28,17 @@ public final class ConstraintViolationCorrection {
   }
 
   public static ConstraintViolationCorrection read(String line, ValueFactory valueFactory, Map<IRI, Constraint> constraints) {
+    return read(line, valueFactory, constraintIRI -> Optional.ofNullable(constraints.get(constraintIRI)));
+  }
+
+  static ConstraintViolationCorrection read(String line, ValueFactory valueFactory, Function<IRI, Optional<Constraint>> constraints) {
     String[] parts = line.trim().split("\t");
     if (parts.length < 10) {
       throw new IllegalArgumentException("Invalid correction serialization: " + line);
     }
     IRI constraintIRI = NTriplesUtil.parseURI(parts[0], valueFactory);
-    if (!constraints.containsKey(constraintIRI)) {
-      throw new IllegalArgumentException("Constraint " + constraintIRI + " not found");
-    }
     return new ConstraintViolationCorrection(
-            constraints.get(constraintIRI),
+            constraints.apply(constraintIRI).orElseThrow(() -> new IllegalArgumentException("Constraint " + constraintIRI + " not found")),
             valueFactory.createStatement(
                     NTriplesUtil.parseResource(parts[2], valueFactory),
                     NTriplesUtil.parseURI(parts[3], valueFactory),
@@ -1,12 +1,12 @@
 package org.wikidata.history.corhist.dataset;
 
-import org.apache.commons.lang3.tuple.Pair;
 import org.eclipse.rdf4j.model.*;
 import org.eclipse.rdf4j.model.impl.BooleanLiteral;
 import org.eclipse.rdf4j.query.BindingSet;
 import org.eclipse.rdf4j.query.TupleQuery;
 import org.eclipse.rdf4j.repository.Repository;
 import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.rio.ntriples.NTriplesUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wikidata.history.corhist.IterableTupleQuery;
@@ -14,13 +14,41 @@ import org.wikidata.history.corhist.dataset.queries.*;
 import org.wikidata.history.sparql.Vocabulary;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class ConstraintViolationCorrectionLookup {
+public class ConstraintViolationCorrectionLookup implements AutoCloseable {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ConstraintViolationCorrectionLookup.class);
   private static final Map<String, QueriesForConstraintCorrectionsBuilder> SPARQL_BUILDERS = new HashMap<>();
+  private static final int EXPANSION_BATCH_SIZE = 256;
+  private static final int CURRENT_STATE_CACHE_SIZE = 100_000;
+  private static final int MAX_PENDING_BATCHES_PER_WORKER = 2;
+  /*
+   * The ?main* and ?target* variables are provided at the top level (VALUES block or query bindings)
+   * so they are only used at this level and not inside nested groups
+   */
+  private static final String EXPAND_CORRECTION_FROM_DELETION_PATTERN = "    ?mainRev <http://schema.org/author> ?author .\n" +
+          "    { ?mainRev <http://schema.org/author> ?author . BIND(?mainRev AS ?rev) . BIND(0 AS ?dist) } UNION { ?rev (<http://schema.org/isBasedOn>|^<http://schema.org/isBasedOn>) ?mainRev . BIND(1 AS ?dist) }\n" +
+          "    ?rev <http://schema.org/author> ?author ;\n" +
+          "         <http://wikiba.se/history/ontology#additions> ?additions ;\n" +
+          "    FILTER NOT EXISTS { GRAPH ?additions { ?targetS ?targetP ?targetO } }\n" +
+          "    GRAPH ?additions { ?mainS ?p ?o }\n" +
+          "    FILTER(sameTerm(?p, ?mainP) || sameTerm(?o, ?mainO))\n" +
+          "    BIND(?mainS AS ?s)\n";
+  private static final String EXPAND_CORRECTION_FROM_ADDITION_PATTERN = "    ?mainRev <http://schema.org/author> ?author .\n" +
+          "    { ?mainRev <http://schema.org/author> ?author . BIND(?mainRev AS ?rev) . BIND(0 AS ?dist) } UNION { ?rev (<http://schema.org/isBasedOn>|^<http://schema.org/isBasedOn>) ?mainRev . BIND(1 AS ?dist) }\n" +
+          "    ?rev <http://schema.org/author> ?author ;\n" +
+          "         <http://wikiba.se/history/ontology#deletions> ?deletions .\n" +
+          "    FILTER NOT EXISTS { GRAPH ?additions { ?targetS ?targetP ?targetO } }\n" +
+          "    GRAPH ?deletions { ?mainS ?p ?o }\n" +
+          "    FILTER(sameTerm(?p, ?mainP) || sameTerm(?o, ?mainO))\n" +
+          "    BIND(?mainS AS ?s)\n";
 
   static {
     SPARQL_BUILDERS.put("unique", new UniqueValueQueriesBuilder());
@@ -40,25 +68,54 @@ public class ConstraintViolationCorrectionLookup {
   private final List<QueriesForConstraintCorrectionsBuilder> queryBuilders;
   private final Repository repository;
   private final ValueFactory valueFactory;
-  private final TupleQuery expandCorrectionFromAdditionQuery;
-  private final TupleQuery expandCorrectionFromDeletionQuery;
   private final OptionalLong limit;
+  private final PropertyStatistics statistics;
+  private final ForkJoinPool workerPool;
+  private final boolean batchExpansion;
+  private final ThreadLocal<Worker> workers = ThreadLocal.withInitial(this::newWorker);
+  private final Queue<Worker> allWorkers = new ConcurrentLinkedQueue<>();
 
   public ConstraintViolationCorrectionLookup(String queryBuilders, Repository repository) {
-    this(filterQueriesBuilder(queryBuilders), repository, OptionalLong.empty());
+    this(filterQueriesBuilder(queryBuilders), repository, OptionalLong.empty(), 1, new PropertyStatistics(), true);
   }
 
   public ConstraintViolationCorrectionLookup(String queryBuilders, Repository repository, OptionalLong limit) {
-    this(filterQueriesBuilder(queryBuilders), repository, limit);
+    this(filterQueriesBuilder(queryBuilders), repository, limit, 1, new PropertyStatistics(), true);
   }
 
-  private ConstraintViolationCorrectionLookup(List<QueriesForConstraintCorrectionsBuilder> queryBuilders, Repository repository, OptionalLong limit) {
+  /**
+   * @param parallelism number of worker threads used to evaluate the lookup queries and expand the corrections.
+   *                    If it is 1 the lookup is done sequentially in the calling thread.
+   */
+  public ConstraintViolationCorrectionLookup(String queryBuilders, Repository repository, OptionalLong limit, int parallelism) {
+    this(filterQueriesBuilder(queryBuilders), repository, limit, parallelism, new PropertyStatistics(), true);
+  }
+
+  /**
+   * @param statistics cache used for the number of instances and of violations on the current global state
+   */
+  public ConstraintViolationCorrectionLookup(String queryBuilders, Repository repository, OptionalLong limit, int parallelism, PropertyStatistics statistics) {
+    this(filterQueriesBuilder(queryBuilders), repository, limit, parallelism, statistics, true);
+  }
+
+  /**
+   * @param batchExpansion if false all the corrections are expanded one by one like the ones containing blank nodes
+   */
+  ConstraintViolationCorrectionLookup(String queryBuilders, Repository repository, int parallelism, boolean batchExpansion) {
+    this(filterQueriesBuilder(queryBuilders), repository, OptionalLong.empty(), parallelism, new PropertyStatistics(), batchExpansion);
+  }
+
+  private ConstraintViolationCorrectionLookup(List<QueriesForConstraintCorrectionsBuilder> queryBuilders, Repository repository, OptionalLong limit, int parallelism, PropertyStatistics statistics, boolean batchExpansion) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("The parallelism should be at least 1, " + parallelism + " given");
+    }
     this.queryBuilders = queryBuilders;
     this.repository = repository;
     this.valueFactory = repository.getValueFactory();
-    this.expandCorrectionFromAdditionQuery = buildExpandCorrectionFromAdditionQuery();
-    this.expandCorrectionFromDeletionQuery = buildExpandCorrectionFromDeletionQuery();
     this.limit = limit;
+    this.statistics = statistics;
+    this.workerPool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    this.batchExpansion = batchExpansion;
   }
 
   private static List<QueriesForConstraintCorrectionsBuilder> filterQueriesBuilder(String selector) {
@@ -78,10 +135,22 @@ public class ConstraintViolationCorrectionLookup {
 
 
   public Stream<ConstraintViolationCorrection> findCorrections(Constraint constraint) {
+    if (workerPool != null) {
+      return findCorrectionsInParallel(constraint);
+    }
     return findQueries(constraint)
-            .flatMap(query -> new IterableTupleQuery(repository, query).stream())
-            .map(correction -> buildCorrection(correction, constraint))
-            .filter(this::isCorrectionStillApplied);
+            .flatMap(query -> batches(new IterableTupleQuery(repository, query).stream(), EXPANSION_BATCH_SIZE))
+            .flatMap(batch -> workers.get().currentStateChecker.filterStillApplied(buildCorrections(batch, constraint)).stream());
+  }
+
+  /**
+   * The lookup results are read in the calling thread and their batches are expanded by the workers
+   */
+  private Stream<ConstraintViolationCorrection> findCorrectionsInParallel(Constraint constraint) {
+    ParallelExpansionIterator results = new ParallelExpansionIterator(findQueries(constraint).iterator(), constraint);
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results, Spliterator.ORDERED), false)
+            .flatMap(List::stream)
+            .onClose(results::close);
   }
 
   private Stream<String> findQueries(Constraint constraint) {
@@ -98,139 +167,126 @@ public class ConstraintViolationCorrectionLookup {
             .map(query -> query + (limit.isPresent() ? " LIMIT " + limit.getAsLong() : ""));
   }
 
-  private ConstraintViolationCorrection buildCorrection(BindingSet bindingSet, Constraint constraint) {
-    IRI corrRevision = (IRI) bindingSet.getValue("corrRev");
-    Statement target = valueFactory.createStatement(
-            (Resource) bindingSet.getValue("targetS"),
-            Vocabulary.toDirectProperty(constraint.getProperty()),
-            bindingSet.getValue("targetO")
-    );
-    Statement mainCorrection = valueFactory.createStatement(
-            (Resource) bindingSet.getValue("corrS"),
-            bindingSet.hasBinding("corrP")
-                    ? (IRI) bindingSet.getValue("corrP")
-                    : Vocabulary.toDirectProperty(constraint.getProperty()),
-            bindingSet.getValue("corrO"),
-            bindingSet.getValue("isCorrAddition").equals(BooleanLiteral.TRUE)
-                    ? Vocabulary.HISTORY_ADDITION
-                    : Vocabulary.HISTORY_DELETION
-    );
-    Pair<Set<Statement>, IRI> correctionAndRevision = expandCorrection(mainCorrection, target, corrRevision);
-    return new ConstraintViolationCorrection(
-            constraint,
-            target,
-            correctionAndRevision.getLeft(),
-            correctionAndRevision.getRight()
-    );
+  private List<ConstraintViolationCorrection> buildCorrections(List<BindingSet> bindingSets, Constraint constraint) {
+    List<CorrectionCandidate> candidates = bindingSets.stream()
+            .map(bindingSet -> new CorrectionCandidate(bindingSet, constraint))
+            .sorted(Comparator.comparingLong(candidate -> revisionId(candidate.mainRevision)))
+            .collect(Collectors.toList());
+
+    //Blank nodes are not allowed in VALUES blocks so we expand the candidates containing some of them one by one
+    Map<Boolean, List<CorrectionCandidate>> candidatesByBatchability = candidates.stream()
+            .collect(Collectors.partitioningBy(candidate -> batchExpansion && candidate.isBatchable()));
+    candidatesByBatchability.get(false).forEach(this::expandCorrection);
+    candidatesByBatchability.get(true).stream()
+            .collect(Collectors.partitioningBy(candidate -> candidate.mainCorrection.getContext().equals(Vocabulary.HISTORY_DELETION)))
+            .forEach((isDeletion, sameKindCandidates) -> {
+              if (!sameKindCandidates.isEmpty()) {
+                expandCorrections(sameKindCandidates, isDeletion);
+              }
+            });
+
+    return candidates.stream()
+            .map(candidate -> candidate.toCorrection(constraint))
+            .collect(Collectors.toList());
   }
 
-  private TupleQuery buildExpandCorrectionFromDeletionQuery() {
-    return repository.getConnection().prepareTupleQuery("SELECT ?s ?p ?o ?rev (true AS ?isAddition) ?dist WHERE {\n" +
-            "    ?mainRev <http://schema.org/author> ?author .\n" +
-            "    { BIND(?mainRev AS ?rev). BIND(0 AS ?dist) } UNION { ?rev (<http://schema.org/isBasedOn>|^<http://schema.org/isBasedOn>) ?mainRev . BIND(1 AS ?dist) }\n" +
-            "    ?rev <http://schema.org/author> ?author ;\n" +
-            "         <http://wikiba.se/history/ontology#additions> ?additions ;\n" +
-            "    FILTER NOT EXISTS { GRAPH ?additions { ?targetS ?targetP ?targetO } }\n" +
-            "    BIND(?mainS AS ?s)\n" +
-            "    GRAPH ?additions {\n" +
-            "        {\n" +
-            "            BIND(?mainP AS ?p)\n" +
-            "            ?s ?p ?o .\n" +
-            "        } UNION {\n" +
-            "            BIND(?mainO AS ?o)\n" +
-            "            ?s ?p ?o .\n" +
-            "        }\n" +
-            "    }\n" +
-            "}");
-  }
-
-  private TupleQuery buildExpandCorrectionFromAdditionQuery() {
-    return repository.getConnection().prepareTupleQuery("SELECT ?s ?p ?o ?rev (false AS ?isAddition) ?dist WHERE {\n" +
-            "    ?mainRev <http://schema.org/author> ?author .\n" +
-            "    { BIND(?mainRev AS ?rev) . BIND(0 AS ?dist) } UNION { ?rev (<http://schema.org/isBasedOn>|^<http://schema.org/isBasedOn>) ?mainRev . BIND(1 AS ?dist) }\n" +
-            "    ?rev <http://schema.org/author> ?author ;\n" +
-            "         <http://wikiba.se/history/ontology#deletions> ?deletions .\n" +
-            "    FILTER NOT EXISTS { GRAPH ?additions { ?targetS ?targetP ?targetO } }\n" +
-            "    BIND(?mainS AS ?s)\n" +
-            "    GRAPH ?deletions {\n" +
-            "        {\n" +
-            "            BIND(?mainP AS ?p)\n" +
-            "            ?s ?p ?o .\n" +
-            "        } UNION {\n" +
-            "            BIND(?mainO AS ?o)\n" +
-            "            ?s ?p ?o .\n" +
-            "        }\n" +
-            "    }\n" +
-            "}");
-  }
-
-  private synchronized Pair<Set<Statement>, IRI> expandCorrection(Statement mainCorrection, Statement target, IRI mainRevision) {
-    TupleQuery query = mainCorrection.getContext().equals(Vocabulary.HISTORY_DELETION)
-            ? expandCorrectionFromDeletionQuery
-            : expandCorrectionFromAdditionQuery;
-    query.setBinding("mainS", mainCorrection.getSubject());
-    query.setBinding("mainP", mainCorrection.getPredicate());
-    query.setBinding("mainO", mainCorrection.getObject());
-    query.setBinding("targetS", target.getSubject());
-    query.setBinding("targetP", target.getPredicate());
-    query.setBinding("targetO", target.getObject());
-    query.setBinding("mainRev", mainRevision);
-
-    int additionalTripleDistance = Integer.MAX_VALUE;
-    long additionalRevisionId = Long.MAX_VALUE;
-    Set<Statement> additionalTriples = new HashSet<>();
-
-    for (BindingSet bindingSet : new IterableTupleQuery(query)) {
-      int currentDistance = ((Literal) bindingSet.getValue("dist")).intValue();
-      if (currentDistance < additionalTripleDistance) {
-        additionalTriples = new HashSet<>();
-        additionalTripleDistance = currentDistance;
-        additionalRevisionId = Long.MAX_VALUE;
-      }
-      if (currentDistance == additionalTripleDistance) {
-        additionalRevisionId = Math.min(additionalRevisionId, Long.parseLong(((IRI) bindingSet.getValue("rev")).getLocalName()));
-        additionalTriples.add(valueFactory.createStatement(
-                (Resource) bindingSet.getValue("s"),
-                (IRI) bindingSet.getValue("p"),
-                bindingSet.getValue("o"),
-                bindingSet.getValue("isAddition").equals(BooleanLiteral.TRUE)
-                        ? Vocabulary.HISTORY_ADDITION
-                        : Vocabulary.HISTORY_DELETION
-        ));
+  private Worker newWorker() {
+    Worker worker = new Worker(repository.getConnection());
+    allWorkers.add(worker);
+    return worker;
+  }
+
+  private static TupleQuery buildExpandCorrectionFromDeletionQuery(RepositoryConnection connection) {
+    return connection.prepareTupleQuery("SELECT ?s ?p ?o ?rev ?dist WHERE {\n" + EXPAND_CORRECTION_FROM_DELETION_PATTERN + "}");
+  }
+
+  private static TupleQuery buildExpandCorrectionFromAdditionQuery(RepositoryConnection connection) {
+    return connection.prepareTupleQuery("SELECT ?s ?p ?o ?rev ?dist WHERE {\n" + EXPAND_CORRECTION_FROM_ADDITION_PATTERN + "}");
+  }
+
+  private void expandCorrection(CorrectionCandidate candidate) {
+    Worker worker = workers.get();
+    boolean isDeletion = candidate.mainCorrection.getContext().equals(Vocabulary.HISTORY_DELETION);
+    TupleQuery query = isDeletion
+            ? worker.expandCorrectionFromDeletionQuery
+            : worker.expandCorrectionFromAdditionQuery;
+    query.setBinding("mainS", candidate.mainCorrection.getSubject());
+    query.setBinding("mainP", candidate.mainCorrection.getPredicate());
+    query.setBinding("mainO", candidate.mainCorrection.getObject());
+    query.setBinding("targetS", candidate.target.getSubject());
+    query.setBinding("targetP", candidate.target.getPredicate());
+    query.setBinding("targetO", candidate.target.getObject());
+    query.setBinding("mainRev", candidate.mainRevision);
+    try (IterableTupleQuery result = new IterableTupleQuery(query)) {
+      for (BindingSet bindingSet : result) {
+        candidate.addExpansion(bindingSet, isDeletion);
       }
     }
     query.clearBindings();
+  }
 
-    Set<Statement> correction = (additionalTriples.size() > 1) ? new HashSet<>() : additionalTriples;
-    correction.add(mainCorrection);
-    long revisionId = Math.min(Long.parseLong(mainRevision.getLocalName()), additionalRevisionId);
-    return Pair.of(correction, valueFactory.createIRI(Vocabulary.REVISION_NAMESPACE, Long.toString(revisionId)));
-  }
-
-  private boolean isCorrectionStillApplied(ConstraintViolationCorrection correction) {
-    try (RepositoryConnection connection = repository.getConnection()) {
-      return correction.getCorrection().stream().allMatch(statement -> {
-        if (statement.getContext().equals(Vocabulary.HISTORY_ADDITION)) {
-          return connection.hasStatement(statement.getSubject(), statement.getPredicate(), statement.getObject(), false, Vocabulary.CURRENT_GLOBAL_STATE);
-        } else if (statement.getContext().equals(Vocabulary.HISTORY_DELETION)) {
-          return !connection.hasStatement(statement.getSubject(), statement.getPredicate(), statement.getObject(), false, Vocabulary.CURRENT_GLOBAL_STATE);
-        } else {
-          throw new IllegalArgumentException("Not expected correction quad: " + statement);
-        }
-      });
+  /**
+   * Expands a batch of candidates of the same kind using a single query: the candidates are provided using a VALUES block
+   * and the ?candidate variable allows to dispatch the results back
+   */
+  private void expandCorrections(List<CorrectionCandidate> candidates, boolean isDeletion) {
+    StringBuilder query = new StringBuilder("SELECT ?candidate ?s ?p ?o ?rev ?dist WHERE {\n")
+            .append("    VALUES (?candidate ?mainS ?mainP ?mainO ?targetS ?targetP ?targetO ?mainRev) {\n");
+    for (int i = 0; i < candidates.size(); i++) {
+      CorrectionCandidate candidate = candidates.get(i);
+      query.append("        (").append(i).append(' ')
+              .append(NTriplesUtil.toNTriplesString(candidate.mainCorrection.getSubject())).append(' ')
+              .append(NTriplesUtil.toNTriplesString(candidate.mainCorrection.getPredicate())).append(' ')
+              .append(NTriplesUtil.toNTriplesString(candidate.mainCorrection.getObject())).append(' ')
+              .append(NTriplesUtil.toNTriplesString(candidate.target.getSubject())).append(' ')
+              .append(NTriplesUtil.toNTriplesString(candidate.target.getPredicate())).append(' ')
+              .append(NTriplesUtil.toNTriplesString(candidate.target.getObject())).append(' ')
+              .append(NTriplesUtil.toNTriplesString(candidate.mainRevision)).append(")\n");
+    }
+    query.append("    }\n")
+            .append(isDeletion ? EXPAND_CORRECTION_FROM_DELETION_PATTERN : EXPAND_CORRECTION_FROM_ADDITION_PATTERN)
+            .append('}');
+
+    try (IterableTupleQuery result = new IterableTupleQuery(workers.get().connection, query.toString())) {
+      for (BindingSet bindingSet : result) {
+        candidates.get(((Literal) bindingSet.getValue("candidate")).intValue()).addExpansion(bindingSet, isDeletion);
+      }
     }
   }
 
+  private static long revisionId(IRI revision) {
+    return Long.parseLong(revision.getLocalName());
+  }
+
+  private static <T> Stream<List<T>> batches(Stream<T> stream, int batchSize) {
+    Iterator<T> iterator = stream.iterator();
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new Iterator<List<T>>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public List<T> next() {
+        List<T> batch = new ArrayList<>(batchSize);
+        while (batch.size() < batchSize && iterator.hasNext()) {
+          batch.add(iterator.next());
+        }
+        return batch;
+      }
+    }, Spliterator.ORDERED), false).onClose(stream::close);
+  }
+
   public long countCurrentViolations(Constraint constraint) {
-    return findCurrentViolationQuery(constraint)
-            .map(query -> new IterableTupleQuery(repository, query).stream().count())
+    return findCurrentViolationCountQuery(constraint)
+            .map(query -> statistics.getViolationsCount(constraint.getId(), k -> count(query)))
             .orElse(0L);
   }
 
-  private Optional<String> findCurrentViolationQuery(Constraint constraint) {
+  private Optional<String> findCurrentViolationCountQuery(Constraint constraint) {
     return queryBuilders.stream()
             .filter(queryBuilder -> queryBuilder.canBuildForConstraint(constraint))
-            .map(queryBuilder -> queryBuilder.buildViolationQuery(constraint, Vocabulary.CURRENT_GLOBAL_STATE))
+            .map(queryBuilder -> queryBuilder.buildViolationCountQuery(constraint, Vocabulary.CURRENT_GLOBAL_STATE))
             .findAny();
   }
 
@@ -238,13 +294,190 @@ public class ConstraintViolationCorrectionLookup {
     if (!hasQueryBuilder(constraint)) {
       return 0;
     }
-    return new IterableTupleQuery(repository, "SELECT (COUNT(*) AS ?c) FROM <" + Vocabulary.CURRENT_GLOBAL_STATE + "> WHERE { ?s <" + Vocabulary.toDirectProperty(constraint.getProperty()) + "> ?o . }").stream()
-            .findAny()
-            .map(b -> ((Literal) b.getValue("c")).longValue())
-            .orElse(0L);
+    return statistics.getInstancesCount(constraint.getProperty(), property ->
+            count("SELECT (COUNT(*) AS ?c) FROM <" + Vocabulary.CURRENT_GLOBAL_STATE + "> WHERE { ?s <" + Vocabulary.toDirectProperty(property) + "> ?o . }")
+    );
+  }
+
+  private long count(String query) {
+    try (IterableTupleQuery results = new IterableTupleQuery(repository, query)) {
+      return results.stream()
+              .findAny()
+              .map(b -> ((Literal) b.getValue("c")).longValue())
+              .orElse(0L);
+    }
   }
 
   private boolean hasQueryBuilder(Constraint constraint) {
     return queryBuilders.stream().anyMatch(queryBuilder -> queryBuilder.canBuildForConstraint(constraint));
   }
+
+  @Override
+  public void close() {
+    if (workerPool != null) {
+      workerPool.shutdown();
+    }
+    allWorkers.forEach(worker -> worker.connection.close());
+    allWorkers.clear();
+  }
+
+  /**
+   * A correction found by a lookup query with the additional triples found while expanding it
+   */
+  private final class CorrectionCandidate {
+    private final Statement target;
+    private final Statement mainCorrection;
+    private final IRI mainRevision;
+    private int additionalTripleDistance = Integer.MAX_VALUE;
+    private long additionalRevisionId = Long.MAX_VALUE;
+    private Set<Statement> additionalTriples = new HashSet<>();
+
+    private CorrectionCandidate(BindingSet bindingSet, Constraint constraint) {
+      mainRevision = (IRI) bindingSet.getValue("corrRev");
+      target = valueFactory.createStatement(
+              (Resource) bindingSet.getValue("targetS"),
+              Vocabulary.toDirectProperty(constraint.getProperty()),
+              bindingSet.getValue("targetO")
+      );
+      mainCorrection = valueFactory.createStatement(
+              (Resource) bindingSet.getValue("corrS"),
+              bindingSet.hasBinding("corrP")
+                      ? (IRI) bindingSet.getValue("corrP")
+                      : Vocabulary.toDirectProperty(constraint.getProperty()),
+              bindingSet.getValue("corrO"),
+              bindingSet.getValue("isCorrAddition").equals(BooleanLiteral.TRUE)
+                      ? Vocabulary.HISTORY_ADDITION
+                      : Vocabulary.HISTORY_DELETION
+      );
+    }
+
+    private boolean isBatchable() {
+      return !(mainCorrection.getSubject() instanceof BNode || mainCorrection.getObject() instanceof BNode ||
+              target.getSubject() instanceof BNode || target.getObject() instanceof BNode);
+    }
+
+    private void addExpansion(BindingSet bindingSet, boolean isDeletion) {
+      int currentDistance = ((Literal) bindingSet.getValue("dist")).intValue();
+      if (currentDistance < additionalTripleDistance) {
+        additionalTriples = new HashSet<>();
+        additionalTripleDistance = currentDistance;
+        additionalRevisionId = Long.MAX_VALUE;
+      }
+      if (currentDistance == additionalTripleDistance) {
+        additionalRevisionId = Math.min(additionalRevisionId, revisionId((IRI) bindingSet.getValue("rev")));
+        //The expansion of a deletion is looked for in the additions and the reverse
+        additionalTriples.add(valueFactory.createStatement(
+                (Resource) bindingSet.getValue("s"),
+                (IRI) bindingSet.getValue("p"),
+                bindingSet.getValue("o"),
+                isDeletion ? Vocabulary.HISTORY_ADDITION : Vocabulary.HISTORY_DELETION
+        ));
+      }
+    }
+
+    private ConstraintViolationCorrection toCorrection(Constraint constraint) {
+      Set<Statement> correction = (additionalTriples.size() > 1) ? new HashSet<>() : new HashSet<>(additionalTriples);
+      correction.add(mainCorrection);
+      long revisionId = Math.min(revisionId(mainRevision), additionalRevisionId);
+      return new ConstraintViolationCorrection(
+              constraint,
+              target,
+              correction,
+              valueFactory.createIRI(Vocabulary.REVISION_NAMESPACE, Long.toString(revisionId))
+      );
+    }
+  }
+
+  /**
+   * Iterates on the expanded batches of the lookup results in order.
+   * At most {@link #MAX_PENDING_BATCHES_PER_WORKER} batches per worker are in flight so that the results are still streamed.
+   */
+  private final class ParallelExpansionIterator implements Iterator<List<ConstraintViolationCorrection>>, AutoCloseable {
+    private final Iterator<String> queries;
+    private final Constraint constraint;
+    private final Deque<Future<List<ConstraintViolationCorrection>>> pendingBatches = new ArrayDeque<>();
+    private final int maxPendingBatches = MAX_PENDING_BATCHES_PER_WORKER * workerPool.getParallelism();
+    private IterableTupleQuery currentQuery = null;
+    private Iterator<List<BindingSet>> currentBatches = Collections.emptyIterator();
+
+    private ParallelExpansionIterator(Iterator<String> queries, Constraint constraint) {
+      this.queries = queries;
+      this.constraint = constraint;
+    }
+
+    @Override
+    public boolean hasNext() {
+      fillPendingBatches();
+      return !pendingBatches.isEmpty();
+    }
+
+    @Override
+    public List<ConstraintViolationCorrection> next() {
+      fillPendingBatches();
+      if (pendingBatches.isEmpty()) {
+        throw new NoSuchElementException();
+      }
+      try {
+        return pendingBatches.poll().get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new RuntimeException(e.getCause());
+      }
+    }
+
+    private void fillPendingBatches() {
+      while (pendingBatches.size() < maxPendingBatches && nextBatchAvailable()) {
+        List<BindingSet> batch = currentBatches.next();
+        pendingBatches.add(workerPool.submit(() -> workers.get().currentStateChecker.filterStillApplied(buildCorrections(batch, constraint))));
+      }
+    }
+
+    private boolean nextBatchAvailable() {
+      while (!currentBatches.hasNext()) {
+        closeCurrentQuery();
+        if (!queries.hasNext()) {
+          return false;
+        }
+        currentQuery = new IterableTupleQuery(repository, queries.next());
+        currentBatches = batches(currentQuery.stream(), EXPANSION_BATCH_SIZE).iterator();
+      }
+      return true;
+    }
+
+    private void closeCurrentQuery() {
+      if (currentQuery != null) {
+        currentQuery.close();
+        currentQuery = null;
+      }
+    }
+
+    @Override
+    public void close() {
+      pendingBatches.forEach(batch -> batch.cancel(false));
+      pendingBatches.clear();
+      closeCurrentQuery();
+    }
+  }
+
+  /**
+   * State owned by a single thread: RDF4J connections and prepared queries should not be shared between threads
+   */
+  private static final class Worker {
+    private final RepositoryConnection connection;
+    private final TupleQuery expandCorrectionFromAdditionQuery;
+    private final TupleQuery expandCorrectionFromDeletionQuery;
+    private final CurrentStateChecker currentStateChecker;
+
+    private Worker(RepositoryConnection connection) {
+      this.connection = connection;
+      this.currentStateChecker = new CurrentStateChecker(connection, CURRENT_STATE_CACHE_SIZE);
+      this.expandCorrectionFromAdditionQuery = buildExpandCorrectionFromAdditionQuery(connection);
+      this.expandCorrectionFromDeletionQuery = buildExpandCorrectionFromDeletionQuery(connection);
+    }
+  }
 }
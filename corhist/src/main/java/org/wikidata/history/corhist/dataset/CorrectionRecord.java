@@ -0,0 +1,101 @@
+package org.wikidata.history.corhist.dataset;
+
+import org.eclipse.rdf4j.model.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Lightweight view on a correction stored in a {@link MappedCorrectionsFile}.
+ * <p>
+ * Terms are exposed by their ids in the file dictionary and are only converted to RDF values on request.
+ * The view is reused when iterating on a file so it should not be kept.
+ */
+public final class CorrectionRecord {
+
+  private final MappedCorrectionsFile file;
+  int constraintId;
+  long revisionId;
+  int targetSubjectId;
+  int targetPredicateId;
+  int targetObjectId;
+  int correctionSize;
+  int[] correctionTerms = new int[8];
+
+  CorrectionRecord(MappedCorrectionsFile file) {
+    this.file = file;
+  }
+
+  void load(int index) {
+    file.readRecord(index, this);
+  }
+
+  public int getConstraintId() {
+    return constraintId;
+  }
+
+  public long getRevisionId() {
+    return revisionId;
+  }
+
+  public int getTargetSubjectId() {
+    return targetSubjectId;
+  }
+
+  public int getTargetPredicateId() {
+    return targetPredicateId;
+  }
+
+  public int getTargetObjectId() {
+    return targetObjectId;
+  }
+
+  public int getCorrectionSize() {
+    return correctionSize;
+  }
+
+  public int getCorrectionSubjectId(int i) {
+    return correctionTerms[4 * i];
+  }
+
+  public int getCorrectionPredicateId(int i) {
+    return correctionTerms[4 * i + 1];
+  }
+
+  public int getCorrectionObjectId(int i) {
+    return correctionTerms[4 * i + 2];
+  }
+
+  public int getCorrectionContextId(int i) {
+    return correctionTerms[4 * i + 3];
+  }
+
+  public Value getTerm(int id) {
+    return file.getTerm(id);
+  }
+
+  public Statement getTargetTriple() {
+    return file.getValueFactory().createStatement(
+            (Resource) getTerm(targetSubjectId),
+            (IRI) getTerm(targetPredicateId),
+            getTerm(targetObjectId)
+    );
+  }
+
+  public Set<Statement> getCorrection() {
+    Set<Statement> correction = new HashSet<>();
+    for (int i = 0; i < correctionSize; i++) {
+      correction.add(file.getValueFactory().createStatement(
+              (Resource) getTerm(getCorrectionSubjectId(i)),
+              (IRI) getTerm(getCorrectionPredicateId(i)),
+              getTerm(getCorrectionObjectId(i)),
+              (Resource) getTerm(getCorrectionContextId(i))
+      ));
+    }
+    return correction;
+  }
+
+  ConstraintViolationCorrection toCorrection(Constraint constraint) {
+    return new ConstraintViolationCorrection(constraint, getTargetTriple(), getCorrection(), file.getRevision(revisionId));
+  }
+}
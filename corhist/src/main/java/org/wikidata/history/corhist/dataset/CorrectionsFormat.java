@@ -0,0 +1,121 @@
+package org.wikidata.history.corhist.dataset;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * The formats of the corrections files
+ */
+public enum CorrectionsFormat {
+  /**
+   * One correction per line with the terms serialized using N-Triples
+   */
+  TSV("tsv"),
+  /**
+   * Compact binary format with a dictionary of the terms.
+   * See {@link BinaryCorrectionsWriter} for the layout.
+   */
+  BINARY("bin");
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CorrectionsFormat.class);
+  static final byte[] BINARY_MAGIC = new byte[]{'C', 'V', 'C', 'B'};
+  static final byte BINARY_VERSION = 1;
+
+  private final String extension;
+
+  CorrectionsFormat(String extension) {
+    this.extension = extension;
+  }
+
+  public String getExtension() {
+    return extension;
+  }
+
+  public static CorrectionsFormat fromName(String name) {
+    for (CorrectionsFormat format : values()) {
+      if (format.extension.equals(name) || format.name().equalsIgnoreCase(name)) {
+        return format;
+      }
+    }
+    throw new IllegalArgumentException("Unknown corrections format: " + name);
+  }
+
+  /**
+   * Guesses the format of a file from its first bytes
+   */
+  public static CorrectionsFormat detect(Path file) throws IOException {
+    byte[] start = new byte[BINARY_MAGIC.length];
+    try (InputStream inputStream = Files.newInputStream(file)) {
+      int read = 0;
+      while (read < start.length) {
+        int count = inputStream.read(start, read, start.length - read);
+        if (count < 0) {
+          return TSV;
+        }
+        read += count;
+      }
+    }
+    return Arrays.equals(start, BINARY_MAGIC) ? BINARY : TSV;
+  }
+
+  public CorrectionsWriter newWriter(Path file) throws IOException {
+    switch (this) {
+      case TSV:
+        BufferedWriter writer = Files.newBufferedWriter(file);
+        return new CorrectionsWriter() {
+          @Override
+          public void write(ConstraintViolationCorrection correction) throws IOException {
+            correction.write(writer);
+          }
+
+          @Override
+          public void close() throws IOException {
+            writer.close();
+          }
+        };
+      case BINARY:
+        return new BinaryCorrectionsWriter(file);
+      default:
+        throw new IllegalArgumentException("Not supported format: " + this);
+    }
+  }
+
+  /**
+   * Reads a corrections file. The returned stream should be closed.
+   * Corrections for an unknown constraint are ignored.
+   */
+  public Stream<ConstraintViolationCorrection> read(Path file, ValueFactory valueFactory, Map<IRI, Constraint> constraints) throws IOException {
+    return read(file, valueFactory, constraintId -> Optional.ofNullable(constraints.get(constraintId)));
+  }
+
+  Stream<ConstraintViolationCorrection> read(Path file, ValueFactory valueFactory, Function<IRI, Optional<Constraint>> constraints) throws IOException {
+    switch (this) {
+      case TSV:
+        return Files.lines(file).flatMap(line -> {
+          try {
+            return Stream.of(ConstraintViolationCorrection.read(line, valueFactory, constraints));
+          } catch (IllegalArgumentException e) {
+            LOGGER.warn(e.getMessage(), e);
+            return Stream.empty();
+          }
+        });
+      case BINARY:
+        return BinaryCorrectionsReader.read(file, valueFactory, constraints);
+      default:
+        throw new IllegalArgumentException("Not supported format: " + this);
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package org.wikidata.history.corhist.dataset;
+
+import org.apache.commons.cli.*;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Converts a corrections file between the TSV and the binary formats
+ */
+public class CorrectionsFormatConverter {
+
+  public static void main(String[] args) throws IOException, ParseException {
+    Options options = new Options();
+    options.addOption("f", "format", true, "Output format (tsv or bin). By default the format that is not the input one");
+    CommandLineParser parser = new DefaultParser();
+    CommandLine line = parser.parse(options, args);
+    if (line.getArgs().length != 2) {
+      throw new ParseException("Usage: CorrectionsFormatConverter [-f format] <input file> <output file>");
+    }
+
+    Path input = Paths.get(line.getArgs()[0]);
+    Path output = Paths.get(line.getArgs()[1]);
+    CorrectionsFormat inputFormat = CorrectionsFormat.detect(input);
+    CorrectionsFormat outputFormat = line.hasOption("format")
+            ? CorrectionsFormat.fromName(line.getOptionValue("format"))
+            : (inputFormat == CorrectionsFormat.TSV ? CorrectionsFormat.BINARY : CorrectionsFormat.TSV);
+    convert(input, inputFormat, output, outputFormat);
+  }
+
+  public static void convert(Path input, CorrectionsFormat inputFormat, Path output, CorrectionsFormat outputFormat) throws IOException {
+    //The writers only use the constraint IRIs so we do not need to fetch the constraints descriptions
+    Map<IRI, Constraint> constraints = new HashMap<>();
+    try (
+            Stream<ConstraintViolationCorrection> corrections = inputFormat.read(input, SimpleValueFactory.getInstance(), constraintId ->
+                    Optional.of(constraints.computeIfAbsent(constraintId, id -> new Constraint(id, null, null)))
+            );
+            CorrectionsWriter writer = outputFormat.newWriter(output)
+    ) {
+      for (ConstraintViolationCorrection correction : (Iterable<ConstraintViolationCorrection>) corrections::iterator) {
+        writer.write(correction);
+      }
+    }
+  }
+}
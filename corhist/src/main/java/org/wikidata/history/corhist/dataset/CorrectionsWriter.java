@@ -0,0 +1,14 @@
+package org.wikidata.history.corhist.dataset;
+
+import java.io.IOException;
+
+/**
+ * Writes corrections to a corrections file
+ */
+public interface CorrectionsWriter extends AutoCloseable {
+
+  void write(ConstraintViolationCorrection correction) throws IOException;
+
+  @Override
+  void close() throws IOException;
+}
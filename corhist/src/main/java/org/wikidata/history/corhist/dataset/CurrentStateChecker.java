@@ -0,0 +1,85 @@
+package org.wikidata.history.corhist.dataset;
+
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.wikidata.history.sparql.Vocabulary;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Checks if corrections are still applied in the current global state.
+ * <p>
+ * It is not thread safe: each thread should use its own instance.
+ * The triples are looked up in sorted order and the results are kept in a bounded LRU cache
+ * because the same target triples are often returned by the different queries of a builder.
+ */
+final class CurrentStateChecker {
+
+  private static final Comparator<Statement> TRIPLE_ORDER = Comparator
+          .comparing((Statement statement) -> statement.getSubject().stringValue())
+          .thenComparing(statement -> statement.getPredicate().stringValue())
+          .thenComparing(statement -> statement.getObject().stringValue());
+
+  private final RepositoryConnection connection;
+  private final ValueFactory valueFactory;
+  private final Map<Statement, Boolean> cache;
+
+  CurrentStateChecker(RepositoryConnection connection, int cacheSize) {
+    this.connection = connection;
+    this.valueFactory = connection.getValueFactory();
+    this.cache = new LinkedHashMap<Statement, Boolean>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Statement, Boolean> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  List<ConstraintViolationCorrection> filterStillApplied(List<ConstraintViolationCorrection> corrections) {
+    Map<Statement, Boolean> isInCurrentState = lookup(corrections.stream()
+            .flatMap(correction -> correction.getCorrection().stream())
+            .map(this::toTriple)
+            .collect(Collectors.toSet()));
+    return corrections.stream()
+            .filter(correction -> isStillApplied(correction, isInCurrentState))
+            .collect(Collectors.toList());
+  }
+
+  private boolean isStillApplied(ConstraintViolationCorrection correction, Map<Statement, Boolean> isInCurrentState) {
+    return correction.getCorrection().stream().allMatch(statement -> {
+      if (statement.getContext().equals(Vocabulary.HISTORY_ADDITION)) {
+        return isInCurrentState.get(toTriple(statement));
+      } else if (statement.getContext().equals(Vocabulary.HISTORY_DELETION)) {
+        return !isInCurrentState.get(toTriple(statement));
+      } else {
+        throw new IllegalArgumentException("Not expected correction quad: " + statement);
+      }
+    });
+  }
+
+  private Map<Statement, Boolean> lookup(Set<Statement> triples) {
+    Map<Statement, Boolean> results = new HashMap<>();
+    List<Statement> toLookup = new ArrayList<>();
+    for (Statement triple : triples) {
+      Boolean cached = cache.get(triple);
+      if (cached == null) {
+        toLookup.add(triple);
+      } else {
+        results.put(triple, cached);
+      }
+    }
+    toLookup.sort(TRIPLE_ORDER);
+    for (Statement triple : toLookup) {
+      boolean isInCurrentState = connection.hasStatement(triple.getSubject(), triple.getPredicate(), triple.getObject(), false, Vocabulary.CURRENT_GLOBAL_STATE);
+      cache.put(triple, isInCurrentState);
+      results.put(triple, isInCurrentState);
+    }
+    return results;
+  }
+
+  private Statement toTriple(Statement statement) {
+    return valueFactory.createStatement(statement.getSubject(), statement.getPredicate(), statement.getObject());
+  }
+}
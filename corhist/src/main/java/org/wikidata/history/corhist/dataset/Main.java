@@ -5,11 +5,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wikidata.history.sparql.HistoryRepository;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.OptionalLong;
 
 public class Main {
   private static final Logger LOGGER = LoggerFactory.getLogger("dataset");
@@ -17,21 +16,28 @@ public class Main {
   public static void main(String[] args) throws IOException, ParseException {
     Options options = new Options();
     options.addOption("c", "constraints", true, "Constraints to  target");
+    options.addOption("t", "threads", true, "Number of threads used to look for corrections");
+    options.addOption("s", "statistics", true, "File used to cache the property statistics between runs");
+    options.addOption("f", "format", true, "Format of the corrections file (tsv or bin)");
     CommandLineParser parser = new DefaultParser();
     CommandLine line = parser.parse(options, args);
 
     Path index = Paths.get("wd-history-index");
     String filter = line.getOptionValue("constraints", "*");
+    int threads = Integer.parseInt(line.getOptionValue("threads", "1"));
+    String statisticsFile = line.getOptionValue("statistics", "");
+    CorrectionsFormat format = CorrectionsFormat.fromName(line.getOptionValue("format", "tsv"));
     try (
             HistoryRepository historyRepository = new HistoryRepository(index);
-            BufferedWriter writer = Files.newBufferedWriter(Paths.get("constraint-corrections-" + filter + ".tsv"))
+            PropertyStatistics statistics = statisticsFile.isEmpty() ? new PropertyStatistics() : new PropertyStatistics(Paths.get(statisticsFile), index);
+            ConstraintViolationCorrectionLookup constraintViolationCorrectionLookup = new ConstraintViolationCorrectionLookup(filter, historyRepository, OptionalLong.empty(), threads, statistics);
+            CorrectionsWriter writer = format.newWriter(Paths.get("constraint-corrections-" + filter + "." + format.getExtension()))
     ) {
-      ConstraintViolationCorrectionLookup constraintViolationCorrectionLookup = new ConstraintViolationCorrectionLookup(filter, historyRepository);
       new ConstraintsListBuilder().build().stream()
               .flatMap(constraintViolationCorrectionLookup::findCorrections)
               .forEach(correction -> {
                 try {
-                  correction.write(writer);
+                  writer.write(correction);
                 } catch (IOException e) {
                   LOGGER.error(e.getMessage(), e);
                 }
@@ -0,0 +1,220 @@
+package org.wikidata.history.corhist.dataset;
+
+import org.eclipse.rdf4j.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.history.corhist.BinaryCodec;
+import org.wikidata.history.sparql.Vocabulary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Memory-mapped view of a corrections file in the binary format (see {@link BinaryCorrectionsWriter}).
+ * <p>
+ * Nothing is copied on opening: only the offsets of the terms and of the records are computed.
+ * Records are exposed as {@link CorrectionRecord} views and RDF values are only built when they are requested.
+ * Each thread reads the mapping with its own cursor so the file could be read concurrently
+ * but a {@link CorrectionRecord} view should not be shared between threads.
+ */
+public final class MappedCorrectionsFile {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MappedCorrectionsFile.class);
+  private static final int REGION_BITS = 30;
+  private static final long REGION_MASK = (1L << REGION_BITS) - 1;
+
+  private final MappedByteBuffer[] regions;
+  private final ValueFactory valueFactory;
+  private final long[] termOffsets;
+  private final long termsEnd;
+  private final long[] recordOffsets;
+  private final ThreadLocal<Cursor> cursors = ThreadLocal.withInitial(Cursor::new);
+
+  private MappedCorrectionsFile(MappedByteBuffer[] regions, ValueFactory valueFactory) throws IOException {
+    this.regions = regions;
+    this.valueFactory = valueFactory;
+
+    Cursor cursor = new Cursor();
+    for (byte magicByte : CorrectionsFormat.BINARY_MAGIC) {
+      if (cursor.readByte() != magicByte) {
+        throw new IOException("This is not a binary corrections file");
+      }
+    }
+    byte version = cursor.readByte();
+    if (version != CorrectionsFormat.BINARY_VERSION) {
+      throw new IOException("Not supported binary corrections file version: " + version);
+    }
+    termOffsets = new long[(int) cursor.readVarLong()];
+    for (int i = 0; i < termOffsets.length; i++) {
+      termOffsets[i] = cursor.position;
+      cursor.skipTerm();
+    }
+    termsEnd = cursor.position;
+    recordOffsets = new long[(int) cursor.readVarLong()];
+    for (int i = 0; i < recordOffsets.length; i++) {
+      long recordSize = cursor.readVarLong();
+      recordOffsets[i] = cursor.position;
+      cursor.skip(recordSize);
+    }
+  }
+
+  public static MappedCorrectionsFile open(Path file, ValueFactory valueFactory) throws IOException {
+    //The mapping stays valid after the channel is closed
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((size + REGION_MASK) >>> REGION_BITS)];
+      for (int i = 0; i < regions.length; i++) {
+        long start = ((long) i) << REGION_BITS;
+        regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_MASK + 1, size - start));
+      }
+      return new MappedCorrectionsFile(regions, valueFactory);
+    }
+  }
+
+  public int size() {
+    return recordOffsets.length;
+  }
+
+  /**
+   * Calls the consumer on each record. The same {@link CorrectionRecord} object is reused between the calls.
+   */
+  public void forEachRecord(Consumer<CorrectionRecord> consumer) {
+    CorrectionRecord record = new CorrectionRecord(this);
+    for (int i = 0; i < recordOffsets.length; i++) {
+      record.load(i);
+      consumer.accept(record);
+    }
+  }
+
+  /**
+   * Returns the id of a term in the file dictionary if it is used in the file.
+   * The encoded term is compared to the encoded dictionary entries without decoding them.
+   */
+  public OptionalInt getTermId(Value value) {
+    byte[] encoded;
+    try {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      BinaryCodec.writeTerm(output, value);
+      encoded = output.toByteArray();
+    } catch (IllegalArgumentException e) {
+      return OptionalInt.empty();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    Cursor cursor = cursors.get();
+    for (int i = 0; i < termOffsets.length; i++) {
+      long end = (i + 1 < termOffsets.length) ? termOffsets[i + 1] : termsEnd;
+      if (end - termOffsets[i] == encoded.length && cursor.matches(termOffsets[i], encoded)) {
+        return OptionalInt.of(i);
+      }
+    }
+    return OptionalInt.empty();
+  }
+
+  public Value getTerm(int id) {
+    Cursor cursor = cursors.get();
+    cursor.position = termOffsets[id];
+    return cursor.readTerm(valueFactory);
+  }
+
+  /**
+   * Returns a list view of some records that materializes the corrections when they are accessed.
+   * The view might be read from multiple threads.
+   * Like when the file is streamed, the records of the constraints that are not in the map are skipped.
+   *
+   * @param recordIndexes positions of the records in the file
+   */
+  public List<ConstraintViolationCorrection> getCorrections(int[] recordIndexes, Map<IRI, Constraint> constraints) {
+    Map<Integer, Optional<Constraint>> constraintsByTermId = new HashMap<>();
+    CorrectionRecord filterRecord = new CorrectionRecord(this);
+    int[] knownRecordIndexes = Arrays.stream(recordIndexes).filter(recordIndex -> {
+      filterRecord.load(recordIndex);
+      return constraintsByTermId.computeIfAbsent(filterRecord.getConstraintId(), termId -> {
+        IRI constraintId = (IRI) getTerm(termId);
+        Optional<Constraint> constraint = Optional.ofNullable(constraints.get(constraintId));
+        if (!constraint.isPresent()) {
+          LOGGER.warn("Constraint " + constraintId + " not found");
+        }
+        return constraint;
+      }).isPresent();
+    }).toArray();
+
+    ThreadLocal<CorrectionRecord> records = ThreadLocal.withInitial(() -> new CorrectionRecord(this));
+    class CorrectionList extends AbstractList<ConstraintViolationCorrection> implements RandomAccess {
+      @Override
+      public ConstraintViolationCorrection get(int index) {
+        CorrectionRecord record = records.get();
+        record.load(knownRecordIndexes[index]);
+        return record.toCorrection(constraintsByTermId.get(record.getConstraintId()).get());
+      }
+
+      @Override
+      public int size() {
+        return knownRecordIndexes.length;
+      }
+    }
+    return new CorrectionList();
+  }
+
+  void readRecord(int index, CorrectionRecord record) {
+    Cursor cursor = cursors.get();
+    cursor.position = recordOffsets[index];
+    record.constraintId = (int) cursor.readVarLong();
+    record.revisionId = cursor.readVarLong();
+    record.targetSubjectId = (int) cursor.readVarLong();
+    record.targetPredicateId = (int) cursor.readVarLong();
+    record.targetObjectId = (int) cursor.readVarLong();
+    record.correctionSize = (int) cursor.readVarLong();
+    if (record.correctionTerms.length < 4 * record.correctionSize) {
+      record.correctionTerms = new int[4 * record.correctionSize];
+    }
+    for (int i = 0; i < 4 * record.correctionSize; i++) {
+      record.correctionTerms[i] = (int) cursor.readVarLong();
+    }
+  }
+
+  IRI getRevision(long revisionId) {
+    return valueFactory.createIRI(Vocabulary.REVISION_NAMESPACE, Long.toString(revisionId));
+  }
+
+  ValueFactory getValueFactory() {
+    return valueFactory;
+  }
+
+  /**
+   * Read position in the mapped file
+   */
+  private final class Cursor extends BinaryCodec.Decoder {
+    private long position = 0;
+
+    @Override
+    protected byte readByte() {
+      byte value = regions[(int) (position >>> REGION_BITS)].get((int) (position & REGION_MASK));
+      position++;
+      return value;
+    }
+
+    @Override
+    protected void skip(long length) {
+      position += length;
+    }
+
+    private boolean matches(long start, byte[] bytes) {
+      position = start;
+      for (byte b : bytes) {
+        if (readByte() != b) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package org.wikidata.history.corhist.dataset;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Cache of the statistics computed on the current global state (number of instances per property and number of violations per constraint).
+ * <p>
+ * If a file is provided the statistics are loaded from it and the newly computed ones are appended to it
+ * so they could be reused by the following runs.
+ * The file is a TSV file with the statistic kind, the property or constraint IRI and the value.
+ * Its first line stores a fingerprint of the index the statistics have been computed on:
+ * the file is reset if the index has changed since.
+ */
+public final class PropertyStatistics implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PropertyStatistics.class);
+  private static final String INSTANCES = "instances";
+  private static final String VIOLATIONS = "violations";
+  private static final String INDEX = "index";
+
+  private final Map<String, Long> values = new ConcurrentHashMap<>();
+  private final BufferedWriter writer;
+
+  /**
+   * Builds an in-memory cache only valid for the current run
+   */
+  public PropertyStatistics() {
+    writer = null;
+  }
+
+  public PropertyStatistics(Path file, Path index) throws IOException {
+    String indexFingerprint = fingerprint(index);
+    boolean isValid = false;
+    if (Files.exists(file)) {
+      try (Stream<String> lines = Files.lines(file)) {
+        Iterator<String> iterator = lines.iterator();
+        isValid = iterator.hasNext() && iterator.next().equals(INDEX + '\t' + indexFingerprint);
+        while (isValid && iterator.hasNext()) {
+          String line = iterator.next();
+          String[] parts = line.split("\t");
+          if (parts.length == 3) {
+            values.put(parts[0] + '\t' + parts[1], Long.parseLong(parts[2]));
+          } else {
+            LOGGER.warn("Invalid statistics line: " + line);
+          }
+        }
+      }
+      if (!isValid) {
+        LOGGER.info("The statistics in " + file + " have been computed on an other version of the index, they are discarded");
+      }
+    }
+    if (isValid) {
+      writer = Files.newBufferedWriter(file, StandardOpenOption.APPEND);
+    } else {
+      writer = Files.newBufferedWriter(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+      writer.append(INDEX).append('\t').append(indexFingerprint).append('\n');
+      writer.flush();
+    }
+  }
+
+  /**
+   * The index is a RocksDB database: its table files are immutable so their names and sizes identify its content.
+   * The other files (logs, options...) are rewritten each time the index is opened.
+   */
+  private static String fingerprint(Path index) throws IOException {
+    List<Path> files;
+    try (Stream<Path> paths = Files.list(index)) {
+      files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+    List<Path> tableFiles = files.stream()
+            .filter(path -> path.getFileName().toString().endsWith(".sst"))
+            .collect(Collectors.toList());
+    StringBuilder description = new StringBuilder();
+    for (Path file : tableFiles.isEmpty() ? files : tableFiles) {
+      description.append(file.getFileName()).append(':').append(Files.size(file)).append('\n');
+    }
+    return Integer.toHexString(description.toString().hashCode());
+  }
+
+  long getInstancesCount(IRI property, ToLongFunction<IRI> compute) {
+    return get(INSTANCES, property, compute);
+  }
+
+  long getViolationsCount(IRI constraint, ToLongFunction<IRI> compute) {
+    return get(VIOLATIONS, constraint, compute);
+  }
+
+  private long get(String kind, IRI key, ToLongFunction<IRI> compute) {
+    String k = kind + '\t' + key;
+    Long value = values.get(k);
+    if (value != null) {
+      return value;
+    }
+    //The computation is not done inside computeIfAbsent that would block the other keys of the same bin during the query
+    long computed = compute.applyAsLong(key);
+    Long previous = values.putIfAbsent(k, computed);
+    if (previous != null) {
+      return previous;
+    }
+    save(k, computed);
+    return computed;
+  }
+
+  private void save(String key, long value) {
+    if (writer == null) {
+      return;
+    }
+    synchronized (writer) {
+      try {
+        writer.append(key).append('\t').append(Long.toString(value)).append('\n');
+        writer.flush();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (writer != null) {
+      writer.close();
+    }
+  }
+}
@@ -44,4 +44,10 @@ public interface QueriesForConstraintCorrectionsBuilder {
    * They should start with "SELECT ?targetS ?targetO WHERE"
    */
   String buildViolationQuery(Constraint constraint, IRI revision);
+
+  /**
+   * Returns a query counting the violations found by {@link #buildViolationQuery(Constraint, IRI)}.
+   * The count is returned in the ?c variable
+   */
+  String buildViolationCountQuery(Constraint constraint, IRI revision);
 }
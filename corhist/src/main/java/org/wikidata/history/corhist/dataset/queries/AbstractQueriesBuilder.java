@@ -15,6 +15,25 @@ abstract class AbstractQueriesBuilder implements QueriesForConstraintCorrections
 
   private static final Logger LOGGER = LoggerFactory.getLogger(AbstractQueriesBuilder.class);
 
+  @Override
+  public String buildViolationQuery(Constraint constraint, IRI revision) {
+    return "SELECT DISTINCT (?s AS ?targetS) (?o AS ?targetO) FROM <" + Vocabulary.toGlobalState(revision) + "> WHERE { " +
+            buildViolationPattern(constraint) +
+            "}";
+  }
+
+  @Override
+  public String buildViolationCountQuery(Constraint constraint, IRI revision) {
+    return "SELECT (COUNT(*) AS ?c) FROM <" + Vocabulary.toGlobalState(revision) + "> WHERE { " +
+            "{ SELECT DISTINCT ?s ?o WHERE { " + buildViolationPattern(constraint) + "} } " +
+            "}";
+  }
+
+  /**
+   * Returns the graph pattern matching the violations with the ?s and ?o variables
+   */
+  abstract String buildViolationPattern(Constraint constraint);
+
   String convertRelationParameter(Constraint constraint) {
     Value relation = constraint.getParameter(RELATION_PARAMETER)
             .orElseGet(() -> {
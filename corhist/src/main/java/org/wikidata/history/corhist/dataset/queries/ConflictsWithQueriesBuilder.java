@@ -45,14 +45,12 @@ public class ConflictsWithQueriesBuilder extends AbstractQueriesBuilder {
   }
 
   @Override
-  public String buildViolationQuery(Constraint constraint, IRI revision) {
+  String buildViolationPattern(Constraint constraint) {
     IRI targetProperty = Vocabulary.toDirectProperty(constraint.getProperty());
     IRI propertyInConflict = Vocabulary.toDirectProperty((IRI) constraint.getParameters(PROPERTY_PARAMETER).get(0));
     String valuesInConflictFilter = convertItemParameter(constraint, "o2");
 
-    return "SELECT DISTINCT (?s AS ?targetS) (?o AS ?targetO) FROM <" + Vocabulary.toGlobalState(revision) + "> WHERE { " +
-            " ?s <" + targetProperty + "> ?o . " +
-            valuesInConflictFilter + " ?s <" + propertyInConflict + "> ?o2 ." +
-            "}";
+    return " ?s <" + targetProperty + "> ?o . " +
+            valuesInConflictFilter + " ?s <" + propertyInConflict + "> ?o2 .";
   }
 }
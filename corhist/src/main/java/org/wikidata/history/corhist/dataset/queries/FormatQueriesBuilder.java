@@ -43,13 +43,11 @@ public class FormatQueriesBuilder extends AbstractQueriesBuilder {
   }
 
   @Override
-  public String buildViolationQuery(Constraint constraint, IRI revision) {
+  String buildViolationPattern(Constraint constraint) {
     IRI targetProperty = Vocabulary.toDirectProperty(constraint.getProperty());
 
-    return "SELECT DISTINCT (?s AS ?targetS) (?o AS ?targetO) FROM <" + Vocabulary.toGlobalState(revision) + "> WHERE { " +
-            " ?s <" + targetProperty + "> ?o . " +
-            " FILTER( !REGEX( ?o, \"" + convertRegexParameter(constraint) + "\" ) ) " +
-            "}";
+    return " ?s <" + targetProperty + "> ?o . " +
+            " FILTER( !REGEX( ?o, \"" + convertRegexParameter(constraint) + "\" ) ) ";
   }
 
   String convertRegexParameter(Constraint constraint) {
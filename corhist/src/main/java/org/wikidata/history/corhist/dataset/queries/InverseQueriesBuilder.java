@@ -50,16 +50,14 @@ public class InverseQueriesBuilder extends AbstractQueriesBuilder {
   }
 
   @Override
-  public String buildViolationQuery(Constraint constraint, IRI revision) {
+  String buildViolationPattern(Constraint constraint) {
     IRI directProperty = Vocabulary.toDirectProperty(constraint.getProperty());
     IRI inverseDirectProperty = constraint.getType().equals(SYMMETRIC_CONSTRAINT)
             ? directProperty
             : constraint.getParameters(PROPERTY_PARAMETER).stream()
             .map(p -> Vocabulary.toDirectProperty((IRI) p))
             .findAny().orElseThrow(() -> new IllegalArgumentException(constraint + " do not have property"));
-    return "SELECT DISTINCT (?s AS ?targetS) (?o AS ?targetO) FROM <" + Vocabulary.toGlobalState(revision) + "> WHERE { " +
-            " ?s <" + directProperty + "> ?o . " +
-            " FILTER NOT EXISTS { ?o <" + inverseDirectProperty + "> ?s } . " +
-            "}";
+    return " ?s <" + directProperty + "> ?o . " +
+            " FILTER NOT EXISTS { ?o <" + inverseDirectProperty + "> ?s } . ";
   }
 }
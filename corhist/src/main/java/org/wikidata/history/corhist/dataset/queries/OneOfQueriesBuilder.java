@@ -37,13 +37,11 @@ public class OneOfQueriesBuilder extends AbstractQueriesBuilder {
   }
 
   @Override
-  public String buildViolationQuery(Constraint constraint, IRI revision) {
+  String buildViolationPattern(Constraint constraint) {
     IRI targetProperty = Vocabulary.toDirectProperty(constraint.getProperty());
     String valuesToHaveFilter = convertItemParameter(constraint, "o");
 
-    return "SELECT DISTINCT (?s AS ?targetS) (?o AS ?targetO) FROM <" + Vocabulary.toGlobalState(revision) + "> WHERE { " +
-            " ?s <" + targetProperty + "> ?o . " +
-            " FILTER NOT EXISTS { " + valuesToHaveFilter + " } " +
-            "}";
+    return " ?s <" + targetProperty + "> ?o . " +
+            " FILTER NOT EXISTS { " + valuesToHaveFilter + " } ";
   }
 }
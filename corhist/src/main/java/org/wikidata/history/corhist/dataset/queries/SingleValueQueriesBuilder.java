@@ -34,12 +34,10 @@ public class SingleValueQueriesBuilder extends AbstractQueriesBuilder {
   }
 
   @Override
-  public String buildViolationQuery(Constraint constraint, IRI revision) {
+  String buildViolationPattern(Constraint constraint) {
     IRI directProperty = Vocabulary.toDirectProperty(constraint.getProperty());
 
-    return "SELECT DISTINCT (?s AS ?targetS) (?o AS ?targetO) FROM <" + Vocabulary.toGlobalState(revision) + "> WHERE { " +
-            " ?s <" + directProperty + "> ?o , ?o2 . " +
-            " FILTER(?o != ?o2) " +
-            "}";
+    return " ?s <" + directProperty + "> ?o , ?o2 . " +
+            " FILTER(?o != ?o2) ";
   }
 }
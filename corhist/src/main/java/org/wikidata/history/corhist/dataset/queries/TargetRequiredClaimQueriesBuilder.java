@@ -62,14 +62,12 @@ public class TargetRequiredClaimQueriesBuilder extends AbstractQueriesBuilder {
   }
 
   @Override
-  public String buildViolationQuery(Constraint constraint, IRI revision) {
+  String buildViolationPattern(Constraint constraint) {
     IRI targetProperty = Vocabulary.toDirectProperty(constraint.getProperty());
     IRI propertyToHave = Vocabulary.toDirectProperty((IRI) constraint.getParameters(PROPERTY_PARAMETER).get(0));
     String valuesToHaveFilter = convertItemParameter(constraint, "o2");
 
-    return "SELECT DISTINCT (?s AS ?targetS) (?o AS ?targetO) FROM <" + Vocabulary.toGlobalState(revision) + "> WHERE { " +
-            " ?s <" + targetProperty + "> ?o . " +
-            " FILTER NOT EXISTS { " + valuesToHaveFilter + " ?o <" + propertyToHave + "> ?o2 } " +
-            "}";
+    return " ?s <" + targetProperty + "> ?o . " +
+            " FILTER NOT EXISTS { " + valuesToHaveFilter + " ?o <" + propertyToHave + "> ?o2 } ";
   }
 }
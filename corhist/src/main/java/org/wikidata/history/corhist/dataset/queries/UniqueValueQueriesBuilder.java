@@ -37,13 +37,11 @@ public class UniqueValueQueriesBuilder extends AbstractQueriesBuilder {
   }
 
   @Override
-  public String buildViolationQuery(Constraint constraint, IRI revision) {
+  String buildViolationPattern(Constraint constraint) {
     IRI directProperty = Vocabulary.toDirectProperty(constraint.getProperty());
 
-    return "SELECT DISTINCT (?s AS ?targetS) (?o AS ?targetO) FROM <" + Vocabulary.toGlobalState(revision) + "> WHERE { " +
-            " ?s <" + directProperty + "> ?o . " +
+    return " ?s <" + directProperty + "> ?o . " +
             " ?s2 <" + directProperty + "> ?o . " +
-            " FILTER(?s != ?s2) " +
-            "}";
+            " FILTER(?s != ?s2) ";
   }
 }
@@ -60,14 +60,12 @@ public class ValueTypeQueriesBuilder extends AbstractQueriesBuilder {
   }
 
   @Override
-  public String buildViolationQuery(Constraint constraint, IRI revision) {
+  String buildViolationPattern(Constraint constraint) {
     IRI targetProperty = Vocabulary.toDirectProperty(constraint.getProperty());
     String relationsToHave = convertRelationParameter(constraint);
     String typesToHaveFilter = convertClassParameter(constraint, "o2");
 
-    return "SELECT DISTINCT (?s AS ?targetS) (?o AS ?targetO) FROM <" + Vocabulary.toGlobalState(revision) + "> WHERE { " +
-            " ?s <" + targetProperty + "> ?o . " +
-            " FILTER NOT EXISTS { " + typesToHaveFilter + " ?o " + relationsToHave + "/<" + Vocabulary.toDirectProperty(SUBCLASSOF_PROPERTY) + ">* ?o2 } " +
-            "}";
+    return " ?s <" + targetProperty + "> ?o . " +
+            " FILTER NOT EXISTS { " + typesToHaveFilter + " ?o " + relationsToHave + "/<" + Vocabulary.toDirectProperty(SUBCLASSOF_PROPERTY) + ">* ?o2 } ";
   }
 }
@@ -4,28 +4,26 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wikidata.wdtk.datamodel.helpers.Datamodel;
 
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 final class ConstraintCorrectionsGame implements Game {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ConstraintCorrectionsGame.class);
-  private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
 
   private final ViolationDatabase violationDatabase;
+  private final StatementsFetcher statementsFetcher = new StatementsFetcher();
   private final EditDescriber editDescriber = new EditDescriber();
   private final ApplicableEditChecker applicableEditChecker = new ApplicableEditChecker();
+  private final TileCache tileCache;
 
   ConstraintCorrectionsGame(ViolationDatabase violationDatabase) {
     this.violationDatabase = violationDatabase;
+    this.tileCache = new TileCache(violationDatabase::hasConstraintType, this::getRandomViolations, this::buildTiles);
+    violationDatabase.addEntityChangeListener(tileCache::invalidateEntity);
   }
 
 
@@ -48,39 +46,51 @@ final class ConstraintCorrectionsGame implements Game {
   @Override
   public List<Tile> generateTiles(int count, String language, Map<String, String> options) {
     String correctionsSelector = options.getOrDefault("constraintType", "all");
-    List<PossibleCorrection> corrections = "all".equals(correctionsSelector) || "*".equals(correctionsSelector)
-            ? violationDatabase.getRandomViolations(2 * count)
-            : violationDatabase.getRandomViolationsForConstraintType(options.get("constraintType"), 2 * count);
-    List<Callable<Optional<Tile>>> tileBuilders = corrections.stream()
-            .filter(correction -> applicableEditChecker.isApplicable(correction.getEdit()))
-            .map(correction -> (Callable<Optional<Tile>>) () -> buildTile(correction))
-            .collect(Collectors.toList());
-    try {
-      return EXECUTOR.invokeAll(tileBuilders).stream().flatMap(tileFuture -> {
-        try {
-          return tileFuture.get().map(Stream::of).orElseGet(Stream::empty);
-        } catch (InterruptedException | ExecutionException e) {
-          LOGGER.error(e.getMessage(), e);
-          return Stream.empty();
-        }
-      }).limit(count).collect(Collectors.toList());
-    } catch (InterruptedException e) {
-      LOGGER.error(e.getMessage(), e);
-      return Collections.emptyList();
+    return tileCache.getTiles("all".equals(correctionsSelector) ? TileCache.ALL : correctionsSelector, count);
+  }
+
+  private List<PossibleCorrection> getRandomViolations(String correctionsSelector, int count) {
+    return TileCache.ALL.equals(correctionsSelector)
+            ? violationDatabase.getRandomViolations(count)
+            : violationDatabase.getRandomViolationsForConstraintType(correctionsSelector, count);
+  }
+
+  private List<Optional<Tile>> buildTiles(List<PossibleCorrection> corrections) {
+    //The statements the edits refer to are retrieved once for the applicability checks, the descriptions and the tiles
+    List<Map<String, String>> edits = corrections.stream().map(PossibleCorrection::getEdit).collect(Collectors.toList());
+    StatementsFetcher.Statements statements = statementsFetcher.fetch(edits);
+    List<Boolean> applicabilities = applicableEditChecker.areApplicable(edits, statements);
+    List<PossibleCorrection> applicableCorrections = new ArrayList<>();
+    for (int i = 0; i < corrections.size(); i++) {
+      if (applicabilities.get(i)) {
+        applicableCorrections.add(corrections.get(i));
+      }
     }
+
+    //The edits are described together to batch the API calls
+    List<Optional<String>> descriptions = editDescriber.toStrings(applicableCorrections.stream()
+            .map(PossibleCorrection::getEdit)
+            .collect(Collectors.toList()), statements);
+    List<Optional<Tile>> tiles = new ArrayList<>(corrections.size());
+    int applicablePosition = 0;
+    for (PossibleCorrection correction : corrections) {
+      if (applicablePosition < applicableCorrections.size() && applicableCorrections.get(applicablePosition) == correction) {
+        tiles.add(descriptions.get(applicablePosition).map(description -> buildTile(correction, description, statements)));
+        applicablePosition++;
+      } else {
+        tiles.add(Optional.empty());
+      }
+    }
+    return tiles;
   }
 
-  private Optional<Tile> buildTile(PossibleCorrection correction) {
+  private Tile buildTile(PossibleCorrection correction, String editDescription, StatementsFetcher.Statements statements) {
     Tile tile = new Tile(correction.getId());
 
     tile.addSection(new ItemSection(correction.getEntityId()));
     tile.addSection(new HtmlSection("Violation", EditDescriber.makeWikidataLinksAbsolute(correction.getMessage())));
-    try {
-      tile.addSection(new HtmlSection("Possible correction", editDescriber.toString(correction.getEdit())));
-    } catch (StatementNotFoundException e) {
-      return Optional.empty();
-    }
-    editDescriber.entities(correction.getEdit())
+    tile.addSection(new HtmlSection("Possible correction", editDescription));
+    editDescriber.entities(correction.getEdit(), statements)
             .filter(entityId -> !entityId.equals(correction.getEntityId()))
             .forEach(entityId -> tile.addSection(new ItemSection(entityId)));
 
@@ -88,7 +98,7 @@ final class ConstraintCorrectionsGame implements Game {
     tile.addButton(new Button("white", "skip", "Skip"));
     tile.addButton(new Button("blue", "no", "The proposed correction is wrong"));
 
-    return Optional.of(tile);
+    return tile;
   }
 
   @Override
@@ -106,5 +116,6 @@ final class ConstraintCorrectionsGame implements Game {
         return;
     }
     violationDatabase.logAction(tile, isApproved, user);
+    tileCache.invalidateCorrection(tile);
   }
 }
@@ -3,26 +3,17 @@ package org.wikidata.history.corhist.game;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import okhttp3.HttpUrl;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
+import com.google.common.html.HtmlEscapers;
+import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.wikidata.history.corhist.Constants;
 import org.wikidata.history.sparql.Vocabulary;
 import org.wikidata.wdtk.datamodel.helpers.Datamodel;
 import org.wikidata.wdtk.datamodel.helpers.DatamodelMapper;
-import org.wikidata.wdtk.datamodel.implementation.StatementImpl;
 import org.wikidata.wdtk.datamodel.interfaces.*;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.Arrays;
-import java.util.Map;
-import java.util.Optional;
-import java.util.TreeMap;
-import java.util.concurrent.TimeUnit;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -30,79 +21,96 @@ class EditDescriber {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(EditDescriber.class);
   private static final ObjectMapper OBJECT_MAPPER = new DatamodelMapper(Datamodel.SITE_WIKIDATA);
-  private static final OkHttpClient CLIENT = new OkHttpClient.Builder()
-          .connectTimeout(1, TimeUnit.SECONDS)
-          .readTimeout(1, TimeUnit.SECONDS)
-          .retryOnConnectionFailure(false)
-          .build();
+  private static final int MAX_IDS_PER_CALL = 50;
+  private static final String LANGUAGE = "en";
 
-  String toString(Map<String, String> edit) {
-    switch (edit.get("action")) {
-      case "wbcreateclaim":
-        return wbcreateclaimToString(edit);
-      case "wbremoveclaims":
-        return wbremoveclaimsToString(edit);
-      case "wbsetclaimvalue":
-        return wbsetclaimvalueToString(edit);
-      default:
-        return edit.toString();
-    }
+  private final WikidataApiClient apiClient;
+
+  EditDescriber() {
+    this(WikidataApiClient.getDefault());
   }
 
-  private String wbcreateclaimToString(Map<String, String> edit) {
-    return "Add statement (" +
-            formatValue(SimpleValueSerializer.parseEntityId(edit.get("entity")), null) + ", " +
-            formatValue(Datamodel.makeWikidataPropertyIdValue(edit.get("property")), null) + ", " +
-            formatValue(edit.get("value"), edit.get("property")) + ")";
+  EditDescriber(WikidataApiClient apiClient) {
+    this.apiClient = apiClient;
   }
 
-  private String wbremoveclaimsToString(Map<String, String> edit) {
-    return Arrays.stream(edit.get("claim").split("\\|"))
-            .map(guid -> "Remove <a href='" + Vocabulary.WDS_NAMESPACE + guid + "'>statement</a> " +
-                    getStatement(guid).map(this::formatStatement).orElseThrow(StatementNotFoundException::new)
-            )
-            .collect(Collectors.joining("\n"));
-  }
-
-  private String wbsetclaimvalueToString(Map<String, String> edit) {
-    return "Edit <a href='" + Vocabulary.WDS_NAMESPACE + edit.get("claim") + "'>statement</a> " +
-            getStatement(edit.get("claim")).map(statement ->
-                    formatStatement(statement) + ". Setting value to: " + formatValue(edit.get("value"), statement.getClaim().getMainSnak().getPropertyId().getId())
-            ).orElseThrow(StatementNotFoundException::new);
-  }
-
-  private Optional<Statement> getStatement(String guid) {
-    EntityIdValue subjectId = SimpleValueSerializer.parseEntityId(guid.substring(0, guid.indexOf('$')).toUpperCase());
-
-    Map<String, String> params = new TreeMap<>();
-    params.put("action", "wbgetclaims");
-    params.put("claim", guid);
-    return apiCall(params).flatMap(result -> {
-      for (JsonNode claims : result.get("claims")) {
-        for (JsonNode claim : claims) {
-          try {
-            return Optional.of(OBJECT_MAPPER.readValue(claim.toString(), StatementImpl.PreStatement.class).withSubject(subjectId));
-          } catch (IOException e) {
-            LOGGER.error(e.getMessage(), e);
-          }
-        }
+  /**
+   * Describes the given edits, with an empty result if a statement they refer to is not found.
+   * <p>
+   * The labels of all the items and properties shown are retrieved together with wbgetentities and rendered locally,
+   * only the other values are formatted with wbformatvalue, the calls being done concurrently.
+   *
+   * @param statements the statements the edits refer to
+   */
+  List<Optional<String>> toStrings(List<Map<String, String>> edits, StatementsFetcher.Statements statements) {
+    Set<String> entityIds = new TreeSet<>();
+    for (Map<String, String> edit : edits) {
+      for (String guid : StatementsFetcher.getStatementGuids(edit)) {
+        statements.getStatement(guid).ifPresent(statement -> {
+          entityIds.add(statement.getSubject().getId());
+          entityIds.add(statement.getMainSnak().getPropertyId().getId());
+        });
+      }
+      extractEntities(edit, statements).forEach(entityId -> entityIds.add(entityId.getId()));
+      if (edit.containsKey("property")) {
+        entityIds.add(edit.get("property"));
+      }
+    }
+    Map<String, String> labels = getLabels(entityIds);
+
+    //A first pass finds the values to format with the API
+    Formatter collector = new Formatter(statements, labels, null);
+    for (Map<String, String> edit : edits) {
+      try {
+        collector.toString(edit);
+      } catch (StatementNotFoundException e) {
+        //Not described
+      }
+    }
+    Map<Pair<Value, String>, CompletableFuture<String>> formattedValues = new HashMap<>();
+    for (Pair<Value, String> value : collector.valuesToFormat) {
+      formattedValues.put(value, formatValueWithApi(value.getLeft(), value.getRight(), "text/html"));
+    }
+    Formatter formatter = new Formatter(statements, labels, formattedValues);
+
+    List<Optional<String>> results = new ArrayList<>(edits.size());
+    for (Map<String, String> edit : edits) {
+      try {
+        results.add(Optional.of(formatter.toString(edit)));
+      } catch (StatementNotFoundException e) {
+        results.add(Optional.empty());
       }
-      return Optional.empty();
-    });
+    }
+    return results;
   }
 
-  private String formatStatement(Statement statement) {
-    Claim claim = statement.getClaim();
-    Snak mainSnak = statement.getClaim().getMainSnak();
-    return "(" +
-            formatValue(claim.getSubject(), null) + ", " +
-            formatValue(mainSnak.getPropertyId(), null) + ", " +
-            (mainSnak instanceof ValueSnak ? formatValue(((ValueSnak) mainSnak).getValue(), mainSnak.getPropertyId().getId()) : "?") +
-            ")";
+  /**
+   * Retrieves the labels of items and properties, using batches of {@link #MAX_IDS_PER_CALL} ids
+   */
+  private Map<String, String> getLabels(Collection<String> entityIds) {
+    Map<String, String> labels = new HashMap<>();
+    List<String> ids = entityIds.stream().filter(EditDescriber::hasLabels).collect(Collectors.toList());
+    for (int start = 0; start < ids.size(); start += MAX_IDS_PER_CALL) {
+      Map<String, String> params = new TreeMap<>();
+      params.put("action", "wbgetentities");
+      params.put("ids", String.join("|", ids.subList(start, Math.min(start + MAX_IDS_PER_CALL, ids.size()))));
+      params.put("props", "labels");
+      params.put("languages", LANGUAGE);
+      apiClient.call(params).map(result -> result.get("entities")).ifPresent(entities -> entities.fields().forEachRemaining(entity -> {
+        JsonNode label = entity.getValue().path("labels").path(LANGUAGE).path("value");
+        if (label.isTextual()) {
+          labels.put(entity.getKey(), label.textValue());
+        }
+      }));
+    }
+    return labels;
+  }
 
+  private static boolean hasLabels(String entityId) {
+    return entityId.startsWith("Q") || entityId.startsWith("P");
   }
 
-  private String formatValue(Value value, String propertyId, String generate) {
+  private CompletableFuture<String> formatValueWithApi(Value value, String propertyId, String generate) {
     try {
       Map<String, String> params = new TreeMap<>();
       params.put("action", "wbformatvalue");
@@ -111,10 +119,12 @@ class EditDescriber {
       if (propertyId != null) {
         params.put("property", propertyId);
       }
-      return apiCall(params).map(result -> makeWikidataLinksAbsolute(result.get("result").textValue())).orElseGet(value::toString);
+      return apiClient.callAsync(params).thenApply(response ->
+              response.map(result -> makeWikidataLinksAbsolute(result.get("result").textValue())).orElseGet(value::toString)
+      );
     } catch (JsonProcessingException e) {
       LOGGER.error(e.getMessage(), e);
-      return value.toString();
+      return CompletableFuture.completedFuture(value.toString());
     }
   }
 
@@ -122,65 +132,27 @@ class EditDescriber {
     return html.replace("href=\"/wiki/", "target=\"_blank\" href=\"https://www.wikidata.org/wiki/");
   }
 
-  private String formatValue(Value value, String propertyId) {
-    return formatValue(value, propertyId, "text/html");
-  }
-
   String formatValueAsText(Value value) {
-    return formatValue(value, null, "text/plain");
-  }
-
-  private String formatValue(String value, String propertyId, String generate) {
-    try {
-      return formatValue(SimpleValueSerializer.deserialize(value), propertyId, generate);
-    } catch (IllegalArgumentException e) {
-      LOGGER.error(e.getMessage(), e);
-      return value;
-    }
+    return formatValueWithApi(value, null, "text/plain").join();
   }
 
-  private String formatValue(String value, String propertyId) {
-    return formatValue(value, propertyId, "text/html");
+  /**
+   * The ids of the entities the edit refers to
+   *
+   * @param statements the statements the edit refers to
+   */
+  Stream<String> entities(Map<String, String> edit, StatementsFetcher.Statements statements) {
+    return extractEntities(edit, statements).map(EntityIdValue::getId).distinct();
   }
 
-  private Optional<JsonNode> apiCall(Map<String, String> params) {
-    try {
-      HttpUrl.Builder urlBuilder = HttpUrl.parse("https://www.wikidata.org/w/api.php").newBuilder();
-      urlBuilder.addQueryParameter("format", "json");
-      for (Map.Entry<String, String> param : params.entrySet()) {
-        urlBuilder.addQueryParameter(param.getKey(), param.getValue());
-      }
-      Request request = new Request.Builder()
-              .url(urlBuilder.build())
-              .addHeader("User-Agent", Constants.USER_AGENT)
-              .build();
-      try (Response response = CLIENT.newCall(request).execute()) {
-        if (response.body() == null) {
-          LOGGER.error("No response : " + response);
-          return Optional.empty();
-        }
-        try (InputStream inputStream = response.body().byteStream()) {
-          return Optional.of(OBJECT_MAPPER.readTree(inputStream));
-        }
-      }
-    } catch (IOException e) {
-      LOGGER.error(e.getMessage(), e);
-      return Optional.empty();
-    }
-  }
-
-  Stream<String> entities(Map<String, String> edit) {
-    return extractEntities(edit).map(EntityIdValue::getId).distinct();
-  }
-
-  private Stream<EntityIdValue> extractEntities(Map<String, String> edit) {
+  private Stream<EntityIdValue> extractEntities(Map<String, String> edit, StatementsFetcher.Statements statements) {
     switch (edit.get("action")) {
       case "wbcreateclaim":
         return wbcreateclaimEntities(edit);
       case "wbremoveclaims":
-        return wbremoveclaimsEntities(edit);
+        return wbremoveclaimsEntities(edit, statements);
       case "wbsetclaimvalue":
-        return wbsetclaimvalueEntities(edit);
+        return wbsetclaimvalueEntities(edit, statements);
       default:
         return Stream.empty();
     }
@@ -194,15 +166,15 @@ class EditDescriber {
     );
   }
 
-  private Stream<EntityIdValue> wbremoveclaimsEntities(Map<String, String> edit) {
+  private Stream<EntityIdValue> wbremoveclaimsEntities(Map<String, String> edit, StatementsFetcher.Statements statements) {
     return Arrays.stream(edit.get("claim").split("\\|"))
-            .flatMap(guid -> getStatement(guid).map(Stream::of).orElseGet(Stream::empty))
+            .flatMap(guid -> statements.getStatement(guid).map(Stream::of).orElseGet(Stream::empty))
             .flatMap(this::statementEntities);
   }
 
-  private Stream<EntityIdValue> wbsetclaimvalueEntities(Map<String, String> edit) {
+  private Stream<EntityIdValue> wbsetclaimvalueEntities(Map<String, String> edit, StatementsFetcher.Statements statements) {
     return Stream.concat(
-            getStatement(edit.get("claim")).map(Stream::of).orElseGet(Stream::empty).flatMap(this::statementEntities),
+            statements.getStatement(edit.get("claim")).map(Stream::of).orElseGet(Stream::empty).flatMap(this::statementEntities),
             valueEntities(edit.get("value"))
     );
   }
@@ -210,7 +182,7 @@ class EditDescriber {
   private Stream<EntityIdValue> statementEntities(Statement statement) {
     return Stream.concat(
             Stream.of(statement.getSubject()),
-            Optional.of(statement.getValue())
+            Optional.ofNullable(statement.getValue())
                     .flatMap(value -> value instanceof EntityIdValue ? Optional.of((EntityIdValue) value) : Optional.empty())
                     .map(Stream::of).orElseGet(Stream::empty)
     );
@@ -229,4 +201,95 @@ class EditDescriber {
       return Stream.empty();
     }
   }
+
+  /**
+   * Formats the edits using the retrieved statements, labels and formatted values.
+   * If there are no formatted values it only collects the values to format.
+   */
+  private static final class Formatter {
+    private final StatementsFetcher.Statements statements;
+    private final Map<String, String> labels;
+    private final Map<Pair<Value, String>, CompletableFuture<String>> formattedValues;
+    private final Set<Pair<Value, String>> valuesToFormat = new LinkedHashSet<>();
+
+    private Formatter(StatementsFetcher.Statements statements, Map<String, String> labels, Map<Pair<Value, String>, CompletableFuture<String>> formattedValues) {
+      this.statements = statements;
+      this.labels = labels;
+      this.formattedValues = formattedValues;
+    }
+
+    private String toString(Map<String, String> edit) {
+      switch (edit.get("action")) {
+        case "wbcreateclaim":
+          return wbcreateclaimToString(edit);
+        case "wbremoveclaims":
+          return wbremoveclaimsToString(edit);
+        case "wbsetclaimvalue":
+          return wbsetclaimvalueToString(edit);
+        default:
+          return edit.toString();
+      }
+    }
+
+    private String wbcreateclaimToString(Map<String, String> edit) {
+      return "Add statement (" +
+              formatValue(SimpleValueSerializer.parseEntityId(edit.get("entity")), null) + ", " +
+              formatValue(Datamodel.makeWikidataPropertyIdValue(edit.get("property")), null) + ", " +
+              formatValue(edit.get("value"), edit.get("property")) + ")";
+    }
+
+    private String wbremoveclaimsToString(Map<String, String> edit) {
+      return Arrays.stream(edit.get("claim").split("\\|"))
+              .map(guid -> "Remove <a href='" + Vocabulary.WDS_NAMESPACE + guid + "'>statement</a> " +
+                      getStatement(guid).map(this::formatStatement).orElseThrow(StatementNotFoundException::new)
+              )
+              .collect(Collectors.joining("\n"));
+    }
+
+    private String wbsetclaimvalueToString(Map<String, String> edit) {
+      return "Edit <a href='" + Vocabulary.WDS_NAMESPACE + edit.get("claim") + "'>statement</a> " +
+              getStatement(edit.get("claim")).map(statement ->
+                      formatStatement(statement) + ". Setting value to: " + formatValue(edit.get("value"), statement.getClaim().getMainSnak().getPropertyId().getId())
+              ).orElseThrow(StatementNotFoundException::new);
+    }
+
+    private Optional<Statement> getStatement(String guid) {
+      return statements.getStatement(guid);
+    }
+
+    private String formatStatement(Statement statement) {
+      Claim claim = statement.getClaim();
+      Snak mainSnak = statement.getClaim().getMainSnak();
+      return "(" +
+              formatValue(claim.getSubject(), null) + ", " +
+              formatValue(mainSnak.getPropertyId(), null) + ", " +
+              (mainSnak instanceof ValueSnak ? formatValue(((ValueSnak) mainSnak).getValue(), mainSnak.getPropertyId().getId()) : "?") +
+              ")";
+    }
+
+    private String formatValue(Value value, String propertyId) {
+      if (value instanceof EntityIdValue && labels.containsKey(((EntityIdValue) value).getId())) {
+        EntityIdValue entityId = (EntityIdValue) value;
+        String page = entityId instanceof PropertyIdValue ? "Property:" + entityId.getId() : entityId.getId();
+        return "<a title=\"" + page + "\" target=\"_blank\" href=\"https://www.wikidata.org/wiki/" + page + "\">" +
+                HtmlEscapers.htmlEscaper().escape(labels.get(entityId.getId())) + "</a>";
+      }
+      Pair<Value, String> key = Pair.of(value, propertyId);
+      if (formattedValues == null) {
+        valuesToFormat.add(key);
+        return "";
+      }
+      CompletableFuture<String> formatted = formattedValues.get(key);
+      return formatted == null ? value.toString() : formatted.join();
+    }
+
+    private String formatValue(String value, String propertyId) {
+      try {
+        return formatValue(SimpleValueSerializer.deserialize(value), propertyId);
+      } catch (IllegalArgumentException e) {
+        LOGGER.error(e.getMessage(), e);
+        return value;
+      }
+    }
+  }
 }
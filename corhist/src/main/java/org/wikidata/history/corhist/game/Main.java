@@ -9,6 +9,8 @@ import io.javalin.http.Context;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.List;
@@ -26,7 +28,14 @@ public class Main {
     ViolationDatabase violationDatabase = new ViolationDatabase();
     Runtime.getRuntime().addShutdownHook(new Thread(violationDatabase::close));
 
-    CorrectionLookup correctionLookup = new CorrectionLookup("*.ser");
+    RuleSetManager ruleSetManager = new RuleSetManager(Paths.get("./"), "*.{ser,rules}");
+    try {
+      ruleSetManager.startWatching();
+    } catch (IOException e) {
+      LOGGER.error("Not able to watch the rules files: " + e.getMessage(), e);
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread(ruleSetManager::close));
+    CorrectionLookup correctionLookup = new CorrectionLookup(ruleSetManager);
 
     new Thread(() -> {
       LOGGER.info("initializing database");
@@ -63,6 +72,7 @@ public class Main {
               }
             })
             .get("/corhist/stats", ctx -> ctx.json(violationDatabase.countByTypeStateAndUser()))
+            .get("/corhist/api-metrics", ctx -> ctx.json(WikidataApiClient.getDefault().getMetrics()))
             .start(Integer.parseInt(System.getenv().getOrDefault("PORT", "7000")));
   }
 
@@ -0,0 +1,144 @@
+package org.wikidata.history.corhist.game;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * In-memory set of the ids of the proposed corrections, partitioned by constraint type, allowing random draws.
+ * <p>
+ * Each partition stores its ids in an array. The ids are the values of the database identity column so they are dense:
+ * the partition of each id and its position in the partition array are stored in arrays indexed by id.
+ * Adding, removing (by swapping with the last id of the partition) and drawing an id are in constant time.
+ */
+final class PendingCorrectionSampler {
+
+  private final Map<String, Partition> partitions = new HashMap<>();
+  private final List<Partition> partitionsByIndex = new ArrayList<>();
+  /**
+   * Index of the partition of each id plus one, 0 if the id is not in the set
+   */
+  private int[] partitionOfId = new int[16];
+  private int[] positionOfId = new int[16];
+  private int size = 0;
+
+  synchronized void add(int id, String constraintType) {
+    if (id < 0) {
+      throw new IllegalArgumentException("The ids should not be negative: " + id);
+    }
+    if (id < partitionOfId.length && partitionOfId[id] != 0) {
+      if (partitionsByIndex.get(partitionOfId[id] - 1).constraintType.equals(constraintType)) {
+        return;
+      }
+      remove(id);
+    }
+    Partition partition = partitions.computeIfAbsent(constraintType, type -> {
+      Partition newPartition = new Partition(type, partitionsByIndex.size());
+      partitionsByIndex.add(newPartition);
+      return newPartition;
+    });
+    if (id >= partitionOfId.length) {
+      int length = Math.max(2 * partitionOfId.length, id + 1);
+      partitionOfId = Arrays.copyOf(partitionOfId, length);
+      positionOfId = Arrays.copyOf(positionOfId, length);
+    }
+    partitionOfId[id] = partition.index + 1;
+    positionOfId[id] = partition.add(id);
+    size++;
+  }
+
+  synchronized void remove(int id) {
+    if (id < 0 || id >= partitionOfId.length || partitionOfId[id] == 0) {
+      return;
+    }
+    Partition partition = partitionsByIndex.get(partitionOfId[id] - 1);
+    int position = positionOfId[id];
+    partitionOfId[id] = 0;
+    int moved = partition.remove(position);
+    if (moved != id) {
+      positionOfId[moved] = position;
+    }
+    size--;
+  }
+
+  /**
+   * If an id has been added for the given constraint type, even if it has been removed since
+   */
+  synchronized boolean hasConstraintType(String constraintType) {
+    return partitions.containsKey(constraintType);
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Draws up to {@code limit} distinct ids among all the ids
+   */
+  synchronized List<Integer> sample(int limit) {
+    Random random = ThreadLocalRandom.current();
+    Set<Integer> result = new LinkedHashSet<>();
+    int target = Math.min(limit, size);
+    while (result.size() < target) {
+      int position = random.nextInt(size);
+      for (Partition partition : partitionsByIndex) {
+        if (position < partition.size) {
+          result.add(partition.ids[position]);
+          break;
+        }
+        position -= partition.size;
+      }
+    }
+    return new ArrayList<>(result);
+  }
+
+  /**
+   * Draws up to {@code limit} distinct ids among the ids of the given constraint type
+   */
+  synchronized List<Integer> sample(String constraintType, int limit) {
+    Partition partition = partitions.get(constraintType);
+    if (partition == null) {
+      return Collections.emptyList();
+    }
+    Random random = ThreadLocalRandom.current();
+    Set<Integer> result = new LinkedHashSet<>();
+    int target = Math.min(limit, partition.size);
+    while (result.size() < target) {
+      result.add(partition.ids[random.nextInt(partition.size)]);
+    }
+    return new ArrayList<>(result);
+  }
+
+  private static final class Partition {
+    private final String constraintType;
+    private final int index;
+    private int[] ids = new int[16];
+    private int size = 0;
+
+    private Partition(String constraintType, int index) {
+      this.constraintType = constraintType;
+      this.index = index;
+    }
+
+    /**
+     * @return the position of the added id
+     */
+    private int add(int id) {
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, 2 * size);
+      }
+      ids[size] = id;
+      return size++;
+    }
+
+    /**
+     * Removes the id at the given position by moving the last id to it
+     *
+     * @return the moved id
+     */
+    private int remove(int position) {
+      size--;
+      ids[position] = ids[size];
+      return ids[position];
+    }
+  }
+}
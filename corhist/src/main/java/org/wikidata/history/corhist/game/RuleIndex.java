@@ -0,0 +1,137 @@
+package org.wikidata.history.corhist.game;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.query.algebra.Var;
+import org.wikidata.history.corhist.mining.CompiledRule;
+import org.wikidata.history.corhist.mining.SimpleConstraintRule;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Index of the rules by the constant predicate of their violation body (the constraint)
+ * and, if their violation body object is constant, by this object.
+ * <p>
+ * The rules of a constraint are loaded from the sources and compiled by {@link #warm(Collection)}
+ * or else the first time the constraint is looked up.
+ * The rules returned for a violation keep the sources order then the order of each source,
+ * i.e. the decreasing confidence order of the rules files.
+ */
+final class RuleIndex {
+
+  static final RuleIndex EMPTY = new RuleIndex(Collections.emptyList());
+
+  private final List<Function<IRI, List<SimpleConstraintRule>>> sources;
+  private final Map<IRI, ConstraintRules> rulesByConstraint = new ConcurrentHashMap<>();
+
+  /**
+   * @param sources functions returning the rules of a constraint
+   */
+  RuleIndex(List<Function<IRI, List<SimpleConstraintRule>>> sources) {
+    this.sources = new ArrayList<>(sources);
+  }
+
+  /**
+   * Builds a source from an in-memory list of rules.
+   * The rules without constant predicate are returned for all constraints.
+   */
+  static Function<IRI, List<SimpleConstraintRule>> fromList(List<SimpleConstraintRule> rules) {
+    Map<IRI, List<SimpleConstraintRule>> byConstraint = new HashMap<>();
+    List<SimpleConstraintRule> withVariablePredicate = new ArrayList<>();
+    for (SimpleConstraintRule rule : rules) {
+      Var predicate = rule.getViolationBody().getPredicateVar();
+      if (predicate.isConstant() && predicate.getValue() instanceof IRI) {
+        byConstraint.computeIfAbsent((IRI) predicate.getValue(), k -> new ArrayList<>()).add(rule);
+      } else {
+        withVariablePredicate.add(rule);
+      }
+    }
+    if (withVariablePredicate.isEmpty()) {
+      return constraint -> byConstraint.getOrDefault(constraint, Collections.emptyList());
+    }
+    return constraint -> rules.stream().filter(rule -> {
+      Var predicate = rule.getViolationBody().getPredicateVar();
+      return !predicate.isConstant() || !(predicate.getValue() instanceof IRI) || predicate.getValue().equals(constraint);
+    }).collect(Collectors.toList());
+  }
+
+  /**
+   * Loads and compiles the rules of the given constraints so that their lookups do not use the sources anymore
+   */
+  void warm(Collection<IRI> constraints) {
+    constraints.forEach(this::getConstraintRules);
+  }
+
+  /**
+   * Returns the rules of the given constraint
+   */
+  List<SimpleConstraintRule> getRules(IRI constraint) {
+    return getConstraintRules(constraint).rules;
+  }
+
+  /**
+   * Returns the compiled rules that might apply to a violation of the given constraint with the given object
+   */
+  List<CompiledRule> getRules(IRI constraint, Value object) {
+    ConstraintRules constraintRules = getConstraintRules(constraint);
+    int[] first = constraintRules.withConstantObject.getOrDefault(object, new int[0]);
+    int[] second = constraintRules.withVariableObject;
+
+    //Merge of the two sorted position lists
+    List<CompiledRule> result = new ArrayList<>(first.length + second.length);
+    int i = 0;
+    int j = 0;
+    while (i < first.length || j < second.length) {
+      if (j == second.length || (i < first.length && first[i] < second[j])) {
+        result.add(constraintRules.compiledRules[first[i]]);
+        i++;
+      } else {
+        result.add(constraintRules.compiledRules[second[j]]);
+        j++;
+      }
+    }
+    return result;
+  }
+
+  private ConstraintRules getConstraintRules(IRI constraint) {
+    return rulesByConstraint.computeIfAbsent(constraint, k -> {
+      List<SimpleConstraintRule> rules = new ArrayList<>();
+      for (Function<IRI, List<SimpleConstraintRule>> source : sources) {
+        rules.addAll(source.apply(constraint));
+      }
+      return new ConstraintRules(rules);
+    });
+  }
+
+  private static final class ConstraintRules {
+    private final List<SimpleConstraintRule> rules;
+    private final CompiledRule[] compiledRules;
+    private final Map<Value, int[]> withConstantObject = new HashMap<>();
+    private final int[] withVariableObject;
+
+    private ConstraintRules(List<SimpleConstraintRule> rules) {
+      this.rules = Collections.unmodifiableList(rules);
+      compiledRules = rules.stream().map(CompiledRule::compile).toArray(CompiledRule[]::new);
+
+      Map<Value, List<Integer>> withConstantObject = new HashMap<>();
+      List<Integer> withVariableObject = new ArrayList<>();
+      for (int i = 0; i < rules.size(); i++) {
+        Var object = rules.get(i).getViolationBody().getObjectVar();
+        if (object.isConstant()) {
+          withConstantObject.computeIfAbsent(object.getValue(), k -> new ArrayList<>()).add(i);
+        } else {
+          withVariableObject.add(i);
+        }
+      }
+      withConstantObject.forEach((key, positions) -> this.withConstantObject.put(key, toArray(positions)));
+      this.withVariableObject = toArray(withVariableObject);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+      return list.stream().mapToInt(Integer::intValue).toArray();
+    }
+  }
+}
@@ -0,0 +1,199 @@
+package org.wikidata.history.corhist.game;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.Var;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.history.corhist.mining.RuleStore;
+import org.wikidata.history.corhist.mining.SimpleConstraintRule;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Holds the active rule index and replaces it when the rules files of a directory change.
+ * <p>
+ * The first index is lazy so that the server starts without decoding the rules: the rule stores stay mapped
+ * and the rules of a constraint are decoded and compiled the first time it is looked up.
+ * On reload, a new index is built in the background from all the rules files then swapped atomically:
+ * callers that already got the previous index keep using it.
+ * As the previous index keeps serving meanwhile, the rules of all the constraints are compiled before the swap
+ * and the new rule stores are closed once it is built.
+ * The stores of a replaced lazy index are not closed, they are unmapped when it is garbage collected.
+ * If a reload fails (e.g. a file is still being written) the previous index is kept.
+ */
+final class RuleSetManager implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RuleSetManager.class);
+  private static final long SETTLE_DELAY_MS = 1000;
+
+  private final Path directory;
+  private final String filesGlob;
+  private final PathMatcher filesMatcher;
+  private final AtomicReference<RuleIndex> ruleIndex = new AtomicReference<>(RuleIndex.EMPTY);
+  private WatchService watchService;
+
+  RuleSetManager(Path directory, String filesGlob) {
+    this.directory = directory;
+    this.filesGlob = filesGlob;
+    this.filesMatcher = directory.getFileSystem().getPathMatcher("glob:" + filesGlob);
+    load(false);
+  }
+
+  /**
+   * The current rule index. It is never modified so it could be used for the duration of a request.
+   */
+  RuleIndex getRuleIndex() {
+    return ruleIndex.get();
+  }
+
+  /**
+   * Starts a background thread reloading the rules when a rules file is created or modified
+   */
+  synchronized void startWatching() throws IOException {
+    if (watchService != null) {
+      return;
+    }
+    watchService = directory.getFileSystem().newWatchService();
+    directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    Thread watcher = new Thread(() -> watch(watchService), "rules-watcher");
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
+  private void watch(WatchService watchService) {
+    try {
+      while (true) {
+        boolean changed = isRulesFileChange(watchService.take());
+        //We wait for the writes to settle before reloading
+        WatchKey key;
+        while ((key = watchService.poll(SETTLE_DELAY_MS, TimeUnit.MILLISECONDS)) != null) {
+          changed |= isRulesFileChange(key);
+        }
+        if (changed) {
+          load(true);
+        }
+      }
+    } catch (ClosedWatchServiceException | InterruptedException e) {
+      //The manager is closed
+    }
+  }
+
+  private boolean isRulesFileChange(WatchKey key) {
+    boolean changed = false;
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW ||
+              (event.context() instanceof Path && filesMatcher.matches((Path) event.context()))) {
+        changed = true;
+      }
+    }
+    key.reset();
+    return changed;
+  }
+
+  /**
+   * @param warm if the rules of all the constraints should be compiled before the new index is used
+   */
+  private void load(boolean warm) {
+    List<RuleStore> stores = new ArrayList<>();
+    boolean storesUsed = false;
+    try {
+      Set<IRI> constraints = new HashSet<>();
+      RuleIndex index = new RuleIndex(loadRules(stores, constraints));
+      if (warm) {
+        index.warm(constraints);
+      }
+      ruleIndex.set(index);
+      storesUsed = !warm;
+      LOGGER.info("Rules of " + constraints.size() + " constraints loaded" + (warm ? "" : ", they will be compiled on first use"));
+    } catch (IOException | RuntimeException e) {
+      LOGGER.error("Failed to load the rules, keeping the previous ones: " + e.getMessage(), e);
+    } finally {
+      if (!storesUsed) {
+        stores.forEach(RuleStore::close);
+      }
+    }
+  }
+
+  /**
+   * @param stores      filled with the opened rule stores
+   * @param constraints filled with the constraints having rules
+   */
+  private List<Function<IRI, List<SimpleConstraintRule>>> loadRules(List<RuleStore> stores, Set<IRI> constraints) throws IOException {
+    List<Function<IRI, List<SimpleConstraintRule>>> sources = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, filesGlob)) {
+      for (Path path : stream) {
+        if (RuleStore.isRuleStore(path)) {
+          RuleStore store = RuleStore.open(path);
+          stores.add(store);
+          constraints.addAll(store.getConstraints());
+          sources.add(constraint -> store.getRules(constraint).stream().map(RuleSetManager::removeContext).collect(Collectors.toList()));
+          LOGGER.info(store.size() + " rules mapped from " + path);
+        } else {
+          List<SimpleConstraintRule> rules = loadSerializedRules(path);
+          for (SimpleConstraintRule rule : rules) {
+            Var predicate = rule.getViolationBody().getPredicateVar();
+            if (predicate.isConstant() && predicate.getValue() instanceof IRI) {
+              constraints.add((IRI) predicate.getValue());
+            }
+          }
+          sources.add(RuleIndex.fromList(rules));
+          LOGGER.info(rules.size() + " rules loaded from " + path);
+        }
+      }
+    }
+    return sources;
+  }
+
+  /**
+   * Reads the legacy rules files written with Java serialization
+   */
+  private static List<SimpleConstraintRule> loadSerializedRules(Path path) throws IOException {
+    List<SimpleConstraintRule> rules = new ArrayList<>();
+    try (ObjectInputStream inputStream = new ObjectInputStream(Files.newInputStream(path))) {
+      while (true) {
+        rules.add(removeContext((SimpleConstraintRule) inputStream.readObject()));
+      }
+    } catch (EOFException e) {
+      //It's the end, everything is ok
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    }
+    return rules;
+  }
+
+  private static SimpleConstraintRule removeContext(SimpleConstraintRule rule) {
+    return new SimpleConstraintRule(
+            new HashSet<>(rule.getHead()),
+            removeContext(rule.getViolationBody()),
+            rule.getContextBody().stream().map(RuleSetManager::removeContext).collect(Collectors.toList())
+    );
+  }
+
+  private static StatementPattern removeContext(StatementPattern pattern) {
+    return new StatementPattern(pattern.getScope(), pattern.getSubjectVar(), pattern.getPredicateVar(), pattern.getObjectVar());
+  }
+
+  @Override
+  public synchronized void close() {
+    if (watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        LOGGER.error(e.getMessage(), e);
+      }
+      watchService = null;
+    }
+  }
+}
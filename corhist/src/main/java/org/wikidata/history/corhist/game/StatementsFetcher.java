@@ -0,0 +1,157 @@
+package org.wikidata.history.corhist.game;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.wdtk.datamodel.helpers.Datamodel;
+import org.wikidata.wdtk.datamodel.helpers.DatamodelMapper;
+import org.wikidata.wdtk.datamodel.implementation.EntityDocumentImpl;
+import org.wikidata.wdtk.datamodel.interfaces.EntityDocument;
+import org.wikidata.wdtk.datamodel.interfaces.Statement;
+import org.wikidata.wdtk.datamodel.interfaces.StatementDocument;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
+
+/**
+ * Retrieves the current statements of the entities a batch of edits refers to.
+ * <p>
+ * The entities are fetched with wbgetentities, {@link #MAX_IDS_PER_CALL} at a time and concurrently.
+ * They are not cached: the statements change with the edits and their serializations are large.
+ * The statements the edits refer to by GUID are found in the statements of their subject.
+ */
+final class StatementsFetcher {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StatementsFetcher.class);
+  private static final ObjectMapper OBJECT_MAPPER = new DatamodelMapper(Datamodel.SITE_WIKIDATA);
+  private static final int MAX_IDS_PER_CALL = 50;
+  private static final Pattern ENTITY_ID_PATTERN = Pattern.compile("[LPQ][1-9][0-9]*");
+
+  private final WikidataApiClient apiClient;
+
+  StatementsFetcher() {
+    this(WikidataApiClient.getDefault());
+  }
+
+  StatementsFetcher(WikidataApiClient apiClient) {
+    this.apiClient = apiClient;
+  }
+
+  Statements fetch(List<Map<String, String>> edits) {
+    Set<String> entityIds = new TreeSet<>();
+    Set<String> guids = new HashSet<>();
+    for (Map<String, String> edit : edits) {
+      if ("wbcreateclaim".equals(edit.get("action"))) {
+        entityIds.add(edit.get("entity"));
+      }
+      for (String guid : getStatementGuids(edit)) {
+        guids.add(guid);
+        entityIdFromGuid(guid).ifPresent(entityIds::add);
+      }
+    }
+
+    List<CompletableFuture<Map<String, StatementDocument>>> futures = new ArrayList<>();
+    List<String> ids = new ArrayList<>(entityIds);
+    for (int start = 0; start < ids.size(); start += MAX_IDS_PER_CALL) {
+      futures.add(getEntities(ids.subList(start, Math.min(start + MAX_IDS_PER_CALL, ids.size()))));
+    }
+    Map<String, StatementDocument> entities = new HashMap<>();
+    for (CompletableFuture<Map<String, StatementDocument>> future : futures) {
+      entities.putAll(future.join());
+    }
+
+    Map<String, Statement> statements = new HashMap<>();
+    for (String guid : guids) {
+      findStatement(guid, entities).ifPresent(statement -> statements.put(guid, statement));
+    }
+    return new Statements(entities, statements);
+  }
+
+  /**
+   * The GUIDs of the statements modified by the edit
+   */
+  static List<String> getStatementGuids(Map<String, String> edit) {
+    switch (edit.get("action")) {
+      case "wbremoveclaims":
+        return Arrays.asList(edit.get("claim").split("\\|"));
+      case "wbsetclaimvalue":
+        return Collections.singletonList(edit.get("claim"));
+      default:
+        return Collections.emptyList();
+    }
+  }
+
+  /**
+   * Statement GUIDs are prefixed by the id of their subject like in Q42$F078E5B3-F9A8-480E-B7AC-D97778CBBEF9
+   */
+  private static Optional<String> entityIdFromGuid(String guid) {
+    int separator = guid.indexOf('$');
+    if (separator < 0) {
+      return Optional.empty();
+    }
+    String entityId = guid.substring(0, separator).toUpperCase(Locale.ROOT);
+    return ENTITY_ID_PATTERN.matcher(entityId).matches() ? Optional.of(entityId) : Optional.empty();
+  }
+
+  private static Optional<Statement> findStatement(String guid, Map<String, StatementDocument> entities) {
+    StatementDocument entity = entityIdFromGuid(guid).map(entities::get).orElse(null);
+    if (entity == null) {
+      return Optional.empty();
+    }
+    Iterator<Statement> statements = entity.getAllStatements();
+    while (statements.hasNext()) {
+      Statement statement = statements.next();
+      if (guid.equalsIgnoreCase(statement.getStatementId())) {
+        return Optional.of(statement);
+      }
+    }
+    return Optional.empty();
+  }
+
+  private CompletableFuture<Map<String, StatementDocument>> getEntities(List<String> entityIds) {
+    Map<String, String> params = new TreeMap<>();
+    params.put("action", "wbgetentities");
+    params.put("ids", String.join("|", entityIds));
+    params.put("props", "claims");
+    return apiClient.callUncachedAsync(params).thenApply(response -> {
+      Map<String, StatementDocument> entities = new HashMap<>();
+      response.map(result -> result.get("entities")).ifPresent(result -> result.fields().forEachRemaining(entity -> {
+        if (entity.getValue().has("missing")) {
+          return;
+        }
+        try {
+          EntityDocument document = OBJECT_MAPPER.readValue(entity.getValue().toString(), EntityDocumentImpl.class);
+          if (document instanceof StatementDocument) {
+            entities.put(entity.getKey(), (StatementDocument) document);
+          }
+        } catch (IOException e) {
+          LOGGER.error(e.getMessage(), e);
+        }
+      }));
+      return entities;
+    });
+  }
+
+  /**
+   * The retrieved entities and the statements found for the GUIDs of the edits
+   */
+  static final class Statements {
+    private final Map<String, StatementDocument> entities;
+    private final Map<String, Statement> statements;
+
+    private Statements(Map<String, StatementDocument> entities, Map<String, Statement> statements) {
+      this.entities = entities;
+      this.statements = statements;
+    }
+
+    Optional<StatementDocument> getEntity(String entityId) {
+      return Optional.ofNullable(entities.get(entityId));
+    }
+
+    Optional<Statement> getStatement(String guid) {
+      return Optional.ofNullable(statements.get(guid));
+    }
+  }
+}
@@ -0,0 +1,213 @@
+package org.wikidata.history.corhist.game;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Pools of pre-built tiles, one per corrections selector (a constraint type or {@link #ALL}).
+ * <p>
+ * The pools are refilled in the background when tiles are taken from them.
+ * Tiles are removed when their entity violations are rewritten in the database, when a decision is logged for them
+ * or when they are too old. The edits done on Wikidata are not followed (the recent changes loading is not started)
+ * so the maximal age bounds how long a tile could be served after its entity has been edited.
+ * The pools are also refreshed periodically: the tiles older than half the maximal age are replaced
+ * so that the requests following an idle period are still served from memory.
+ * The pools of the constraint types that have not been requested for a while are dropped.
+ * If a pool does not contain enough tiles, the missing ones are built synchronously.
+ */
+final class TileCache {
+
+  static final String ALL = "*";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TileCache.class);
+  private static final int POOL_SIZE = 50;
+  private static final long MAX_TILE_AGE_MS = TimeUnit.MINUTES.toMillis(2);
+  private static final long REFRESH_INTERVAL_MS = MAX_TILE_AGE_MS / 4;
+  private static final long MAX_POOL_IDLE_MS = TimeUnit.HOURS.toMillis(1);
+
+  private final Predicate<String> isKnownSelector;
+  private final BiFunction<String, Integer, List<PossibleCorrection>> correctionsSource;
+  private final Function<List<PossibleCorrection>, List<Optional<Game.Tile>>> tileBuilder;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "tile-cache-refresher");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final Map<String, Pool> pools = new ConcurrentHashMap<>();
+
+  /**
+   * @param isKnownSelector   if tiles could be built for a selector other than {@link #ALL}, the other selectors get no pool
+   * @param correctionsSource returns random corrections for a selector and a maximal number of corrections
+   * @param tileBuilder       builds the tiles of a list of corrections, with an empty tile if a correction is not applicable anymore
+   */
+  TileCache(Predicate<String> isKnownSelector, BiFunction<String, Integer, List<PossibleCorrection>> correctionsSource, Function<List<PossibleCorrection>, List<Optional<Game.Tile>>> tileBuilder) {
+    this.isKnownSelector = isKnownSelector;
+    this.correctionsSource = correctionsSource;
+    this.tileBuilder = tileBuilder;
+    scheduleRefill(getPool(ALL));
+    refresher.scheduleWithFixedDelay(this::refresh, REFRESH_INTERVAL_MS, REFRESH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  List<Game.Tile> getTiles(String selector, int count) {
+    //The selector comes from the client, we do not want to create a pool for each value sent
+    if (!ALL.equals(selector) && !isKnownSelector.test(selector)) {
+      return Collections.emptyList();
+    }
+    Pool pool = getPool(selector);
+    pool.lastUsed = System.currentTimeMillis();
+    List<Game.Tile> tiles = new ArrayList<>(count);
+    Set<Integer> taken = new HashSet<>();
+    long minCreated = System.currentTimeMillis() - MAX_TILE_AGE_MS;
+    while (tiles.size() < count) {
+      CachedTile cachedTile = pool.poll();
+      if (cachedTile == null) {
+        break;
+      }
+      if (cachedTile.created >= minCreated && taken.add(cachedTile.tile.getId())) {
+        tiles.add(cachedTile.tile);
+      }
+    }
+    //The same correction might be in the pool of its constraint type and in the one of all constraints
+    for (int id : taken) {
+      invalidateCorrection(id);
+    }
+    scheduleRefill(pool);
+
+    if (tiles.size() < count) {
+      for (CachedTile cachedTile : buildTiles(selector, count - tiles.size(), taken)) {
+        tiles.add(cachedTile.tile);
+      }
+    }
+    return tiles;
+  }
+
+  /**
+   * Removes the tiles of the entity, e.g. because it has been edited
+   */
+  void invalidateEntity(String entityId) {
+    for (Pool pool : pools.values()) {
+      pool.removeIf(cachedTile -> cachedTile.entityId.equals(entityId));
+    }
+  }
+
+  /**
+   * Removes the tiles of the correction, e.g. because a decision has been made about it
+   */
+  void invalidateCorrection(int correctionId) {
+    for (Pool pool : pools.values()) {
+      pool.removeIf(cachedTile -> cachedTile.tile.getId() == correctionId);
+    }
+  }
+
+  private Pool getPool(String selector) {
+    return pools.computeIfAbsent(selector, Pool::new);
+  }
+
+  private void refresh() {
+    try {
+      long now = System.currentTimeMillis();
+      pools.values().removeIf(pool -> !ALL.equals(pool.selector) && pool.lastUsed < now - MAX_POOL_IDLE_MS);
+      for (Pool pool : pools.values()) {
+        //The tiles are replaced before they are too old to be served
+        pool.removeIf(cachedTile -> cachedTile.created < now - MAX_TILE_AGE_MS / 2);
+        scheduleRefill(pool);
+      }
+    } catch (RuntimeException e) {
+      //The next refreshes should still run
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
+  private void scheduleRefill(Pool pool) {
+    if (pool.size() < POOL_SIZE && pool.isRefilling.compareAndSet(false, true)) {
+      executor.execute(() -> {
+        try {
+          int missing = POOL_SIZE - pool.size();
+          if (missing > 0) {
+            pool.addAll(buildTiles(pool.selector, missing, pool.getCorrectionIds()));
+          }
+        } catch (Exception e) {
+          LOGGER.error(e.getMessage(), e);
+        } finally {
+          pool.isRefilling.set(false);
+        }
+      });
+    }
+  }
+
+  private List<CachedTile> buildTiles(String selector, int count, Set<Integer> excludedIds) {
+    //Some corrections are not applicable anymore so we retrieve more of them
+    List<PossibleCorrection> corrections = new ArrayList<>();
+    for (PossibleCorrection correction : correctionsSource.apply(selector, 2 * count)) {
+      if (!excludedIds.contains(correction.getId())) {
+        corrections.add(correction);
+      }
+    }
+    List<Optional<Game.Tile>> builtTiles = tileBuilder.apply(corrections);
+    List<CachedTile> tiles = new ArrayList<>(count);
+    for (int i = 0; i < corrections.size() && tiles.size() < count; i++) {
+      String entityId = corrections.get(i).getEntityId();
+      builtTiles.get(i).ifPresent(tile -> tiles.add(new CachedTile(tile, entityId)));
+    }
+    return tiles;
+  }
+
+  private static final class CachedTile {
+    private final Game.Tile tile;
+    private final String entityId;
+    private final long created = System.currentTimeMillis();
+
+    private CachedTile(Game.Tile tile, String entityId) {
+      this.tile = tile;
+      this.entityId = entityId;
+    }
+  }
+
+  private static final class Pool {
+    private final String selector;
+    private final Deque<CachedTile> tiles = new ArrayDeque<>();
+    private final AtomicBoolean isRefilling = new AtomicBoolean();
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    private Pool(String selector) {
+      this.selector = selector;
+    }
+
+    private synchronized CachedTile poll() {
+      return tiles.pollFirst();
+    }
+
+    private synchronized void addAll(List<CachedTile> newTiles) {
+      Set<Integer> ids = getCorrectionIds();
+      for (CachedTile tile : newTiles) {
+        if (tiles.size() < POOL_SIZE && ids.add(tile.tile.getId())) {
+          tiles.addLast(tile);
+        }
+      }
+    }
+
+    private synchronized void removeIf(Predicate<CachedTile> filter) {
+      tiles.removeIf(filter);
+    }
+
+    private synchronized int size() {
+      return tiles.size();
+    }
+
+    private synchronized Set<Integer> getCorrectionIds() {
+      Set<Integer> ids = new HashSet<>();
+      for (CachedTile tile : tiles) {
+        ids.add(tile.tile.getId());
+      }
+      return ids;
+    }
+  }
+}
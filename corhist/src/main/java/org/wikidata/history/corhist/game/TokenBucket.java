@@ -0,0 +1,43 @@
+package org.wikidata.history.corhist.game;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter: allows bursts of up to {@code capacity} permits then {@code permitsPerSecond} permits per second.
+ */
+final class TokenBucket {
+
+  private final double permitsPerNanosecond;
+  private final double capacity;
+  private double tokens;
+  private long lastRefill;
+
+  TokenBucket(double permitsPerSecond, int capacity) {
+    if (permitsPerSecond <= 0 || capacity <= 0) {
+      throw new IllegalArgumentException("The rate and the capacity should be positive");
+    }
+    this.permitsPerNanosecond = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.capacity = capacity;
+    this.tokens = capacity;
+    this.lastRefill = System.nanoTime();
+  }
+
+  /**
+   * Takes a permit, waiting for it if needed.
+   * The permit is reserved before waiting so concurrent callers are served in order.
+   */
+  void acquire() throws InterruptedException {
+    long waitNanos;
+    synchronized (this) {
+      long now = System.nanoTime();
+      tokens = Math.min(capacity, tokens + (now - lastRefill) * permitsPerNanosecond);
+      lastRefill = now;
+      tokens -= 1;
+      if (tokens >= 0) {
+        return;
+      }
+      waitNanos = (long) Math.ceil(-tokens / permitsPerNanosecond);
+    }
+    TimeUnit.NANOSECONDS.sleep(waitNanos);
+  }
+}
@@ -8,37 +8,78 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.sql.*;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
 
 final class ViolationDatabase implements AutoCloseable {
   private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
   private static final Logger LOGGER = LoggerFactory.getLogger(ViolationDatabase.class);
   private static final TypeReference<TreeMap<String, String>> MAP_STR_STR = new TypeReference<TreeMap<String, String>>() {
   };
+  private static final String DEFAULT_DATABASE = "file:violationdb";
+  private static final int MAX_WRITE_BATCH_SIZE = 100;
+  private static final PendingWrite END_OF_WRITES = new PendingWrite(null, null);
 
   private final Connection connection;
-  private final PreparedStatement makeObsoleteForEntityPreparedStatement;
-  private final PreparedStatement insertionPreparedStatement;
-  private final PreparedStatement getViolationStatusStatement;
-  private final PreparedStatement updateViolationStatusStatement;
   private final PreparedStatement findViolationsPreparedStatement;
   private final PreparedStatement findConstraintTypesStatement;
-  private final PreparedStatement findViolationsForConstraintTypePreparedStatement;
   private final PreparedStatement logActionPreparedStatement;
   private final PreparedStatement countByTypeStateAndUserPreparedStatement;
+  private final PreparedStatement getBootstrapCursorStatement;
+  private final PreparedStatement updateBootstrapPositionStatement;
+  private final PreparedStatement getBootstrapEntitiesStatement;
+  private final PreparedStatement getEntitiesRefreshedSinceStatement;
+  private final Connection writeConnection;
+  private final PreparedStatement makeObsoleteForEntityPreparedStatement;
+  private final PreparedStatement mergeViolationPreparedStatement;
+  private final PreparedStatement markEntityRefreshedStatement;
+  private final PreparedStatement findEntityCorrectionsPreparedStatement;
+  private final PendingCorrectionSampler pendingCorrections = new PendingCorrectionSampler();
+  private final List<Consumer<String>> entityChangeListeners = new CopyOnWriteArrayList<>();
+  private final BlockingQueue<PendingWrite> writeQueue = new LinkedBlockingQueue<>();
+  private final Thread writer;
 
   ViolationDatabase() throws SQLException {
-    connection = DriverManager.getConnection("jdbc:hsqldb:file:violationdb;sql.syntax_mys=true;get_column_name=false", "SA", "");
+    this(DEFAULT_DATABASE);
+  }
+
+  /**
+   * @param database the HSQLDB database, e.g. "file:violationdb" or "mem:test"
+   */
+  ViolationDatabase(String database) throws SQLException {
+    String url = "jdbc:hsqldb:" + database + ";sql.syntax_mys=true;get_column_name=false";
+    connection = DriverManager.getConnection(url, "SA", "");
     setupCorrectionTable();
-    makeObsoleteForEntityPreparedStatement = connection.prepareStatement("UPDATE correction SET state = 'o' WHERE entityId = ? AND state = 'p'");
-    insertionPreparedStatement = connection.prepareStatement("INSERT INTO correction (entityId, propertyId, statementId, constraintId, constraintType, message, edit, state) VALUES (?, ?, ?, ?, ?, ?, ?, 'p')");
-    getViolationStatusStatement = connection.prepareStatement("SELECT state FROM correction WHERE statementId = ? AND constraintId = ?");
-    updateViolationStatusStatement = connection.prepareStatement("UPDATE correction SET state = ? WHERE statementId = ? AND constraintId = ?");
-    findViolationsPreparedStatement = connection.prepareStatement("SELECT * FROM correction WHERE state = 'p' ORDER BY RAND() LIMIT ?");
-    findViolationsForConstraintTypePreparedStatement = connection.prepareStatement("SELECT * FROM correction WHERE state = 'p' AND constraintType = ? ORDER BY RAND() LIMIT ?");
+    setupBootstrapTables();
+    findViolationsPreparedStatement = connection.prepareStatement("SELECT * FROM correction WHERE id IN (UNNEST(?)) AND state = 'p'");
     findConstraintTypesStatement = connection.prepareStatement("SELECT DISTINCT constraintType FROM correction");
     logActionPreparedStatement = connection.prepareStatement("UPDATE correction SET state = ?, user_id = ? WHERE id = ?");
     countByTypeStateAndUserPreparedStatement = connection.prepareStatement("SELECT state, constraintType, user_id, COUNT(id) AS count FROM correction GROUP BY state, constraintType, user_id");
+    getBootstrapCursorStatement = connection.prepareStatement("SELECT queryHash, created, position FROM bootstrap WHERE id = 0");
+    updateBootstrapPositionStatement = connection.prepareStatement("UPDATE bootstrap SET position = ? WHERE id = 0");
+    getBootstrapEntitiesStatement = connection.prepareStatement("SELECT entityId FROM bootstrap_entity ORDER BY position");
+    getEntitiesRefreshedSinceStatement = connection.prepareStatement("SELECT entityId FROM entity_refresh WHERE refreshed >= ?");
+
+    //The violations are written by a single thread with its own connection, in transactions
+    writeConnection = DriverManager.getConnection(url, "SA", "");
+    writeConnection.setAutoCommit(false);
+    makeObsoleteForEntityPreparedStatement = writeConnection.prepareStatement("UPDATE correction SET state = 'o' WHERE entityId = ? AND state = 'p'");
+    mergeViolationPreparedStatement = writeConnection.prepareStatement("MERGE INTO correction USING (VALUES(CAST(? AS VARCHAR(16)), CAST(? AS VARCHAR(16)), CAST(? AS VARCHAR(64)), CAST(? AS VARCHAR(64)), CAST(? AS VARCHAR(16)), CAST(? AS LONGVARCHAR), CAST(? AS LONGVARCHAR))) " +
+            "AS v(entityId, propertyId, statementId, constraintId, constraintType, message, edit) ON correction.statementId = v.statementId AND correction.constraintId = v.constraintId " +
+            "WHEN MATCHED THEN UPDATE SET state = CASE WHEN correction.state = 'o' THEN 'p' ELSE correction.state END " +
+            "WHEN NOT MATCHED THEN INSERT (entityId, propertyId, statementId, constraintId, constraintType, message, edit, state) VALUES (v.entityId, v.propertyId, v.statementId, v.constraintId, v.constraintType, v.message, v.edit, 'p')");
+    markEntityRefreshedStatement = writeConnection.prepareStatement("MERGE INTO entity_refresh USING (VALUES(CAST(? AS VARCHAR(16)), CAST(? AS TIMESTAMP))) AS v(entityId, refreshed) ON entity_refresh.entityId = v.entityId " +
+            "WHEN MATCHED THEN UPDATE SET refreshed = v.refreshed WHEN NOT MATCHED THEN INSERT VALUES v.entityId, v.refreshed");
+    findEntityCorrectionsPreparedStatement = writeConnection.prepareStatement("SELECT id, constraintType, state FROM correction WHERE entityId = ?");
+
+    loadPendingCorrections();
+    writer = new Thread(this::writeLoop, "violation-writer");
+    writer.start();
   }
 
   private void setupCorrectionTable() throws SQLException {
@@ -52,78 +93,302 @@ final class ViolationDatabase implements AutoCloseable {
             "  message        TEXT NOT NULL," +
             "  edit           TEXT NOT NULL," +
             "  state          VARCHAR(1) NOT NULL," +
-            "  user_d         VARCHAR(256)," +
+            "  user_id        VARCHAR(256)," +
             "  UNIQUE (statementId, constraintId)," +
             "  INDEX type_index ON (constraintType, constraintId) " +
             ")");
+    connection.createStatement().execute("CREATE INDEX IF NOT EXISTS entity_index ON correction (entityId)");
+
+    //The table used to be created with a misspelled user_d column
+    ResultSet misspelledColumn = connection.createStatement().executeQuery("SELECT COLUMN_NAME FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = 'CORRECTION' AND COLUMN_NAME = 'USER_D'");
+    if (misspelledColumn.next()) {
+      connection.createStatement().execute("ALTER TABLE correction ALTER COLUMN user_d RENAME TO user_id");
+      LOGGER.info("The correction table user_d column has been renamed to user_id");
+    }
+  }
+
+  private void loadPendingCorrections() throws SQLException {
+    ResultSet resultSet = connection.createStatement().executeQuery("SELECT id, constraintType FROM correction WHERE state = 'p'");
+    while (resultSet.next()) {
+      pendingCorrections.add(resultSet.getInt("id"), resultSet.getString("constraintType"));
+    }
+    LOGGER.info(pendingCorrections.size() + " proposed corrections loaded");
+  }
+
+  private void setupBootstrapTables() throws SQLException {
+    connection.createStatement().execute("CREATE TABLE IF NOT EXISTS bootstrap " +
+            " (id        INT PRIMARY KEY NOT NULL," +
+            "  queryHash INT NOT NULL," +
+            "  created   TIMESTAMP NOT NULL," +
+            "  position  INT NOT NULL" +
+            ")");
+    connection.createStatement().execute("CREATE TABLE IF NOT EXISTS bootstrap_entity " +
+            " (position INT PRIMARY KEY NOT NULL," +
+            "  entityId VARCHAR(16) NOT NULL" +
+            ")");
+    connection.createStatement().execute("CREATE TABLE IF NOT EXISTS entity_refresh " +
+            " (entityId  VARCHAR(16) PRIMARY KEY NOT NULL," +
+            "  refreshed TIMESTAMP NOT NULL" +
+            ")");
+  }
+
+  /**
+   * Replaces the proposed violations of an entity by the given ones and marks the entity as refreshed.
+   * <p>
+   * It does not wait for the database: the write is queued and done in a batch with the other queued entities,
+   * in a single transaction. The returned future is completed when the transaction is committed.
+   */
+  CompletableFuture<Void> saveEntityViolations(EntityViolations violations) {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    writeQueue.add(new PendingWrite(violations, future));
+    return future;
+  }
+
+  /**
+   * Registers a listener called with the entity id after each write of the violations of an entity
+   */
+  void addEntityChangeListener(Consumer<String> listener) {
+    entityChangeListeners.add(listener);
+  }
+
+  private void writeLoop() {
+    List<PendingWrite> batch = new ArrayList<>();
+    while (true) {
+      try {
+        batch.add(writeQueue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      writeQueue.drainTo(batch, MAX_WRITE_BATCH_SIZE - 1);
+      boolean isEnd = batch.remove(END_OF_WRITES);
+      if (!batch.isEmpty()) {
+        try {
+          writeBatch(batch);
+        } catch (RuntimeException e) {
+          //The writer thread should stay alive whatever happens to a batch
+          LOGGER.error(e.getMessage(), e);
+          for (PendingWrite write : batch) {
+            write.future.completeExceptionally(e);
+          }
+        }
+      }
+      batch.clear();
+      if (isEnd) {
+        return;
+      }
+    }
   }
 
-  synchronized void clearProposedViolations(String entityId) {
+  private void writeBatch(List<PendingWrite> batch) {
+    //If an entity is written multiple times in the batch, only the last version is kept
+    Map<String, EntityViolations> byEntity = new LinkedHashMap<>();
+    for (PendingWrite write : batch) {
+      byEntity.put(write.violations.entityId, write.violations);
+    }
+    Map<Integer, String> proposedCorrections = new HashMap<>();
+    List<Integer> otherCorrections = new ArrayList<>();
     try {
-      PreparedStatement preparedStatement = makeObsoleteForEntityPreparedStatement;
-      preparedStatement.setString(1, entityId);
-      preparedStatement.executeUpdate();
+      try {
+        for (String entityId : byEntity.keySet()) {
+          makeObsoleteForEntityPreparedStatement.setString(1, entityId);
+          makeObsoleteForEntityPreparedStatement.addBatch();
+        }
+        makeObsoleteForEntityPreparedStatement.executeBatch();
+
+        boolean hasViolations = false;
+        for (EntityViolations violations : byEntity.values()) {
+          for (String[] violation : violations.violations) {
+            for (int i = 0; i < violation.length; i++) {
+              mergeViolationPreparedStatement.setString(i + 1, violation[i]);
+            }
+            mergeViolationPreparedStatement.addBatch();
+            hasViolations = true;
+          }
+        }
+        if (hasViolations) { //HSQLDB fails on empty batches
+          mergeViolationPreparedStatement.executeBatch();
+        }
+
+        Timestamp now = Timestamp.from(Instant.now());
+        for (String entityId : byEntity.keySet()) {
+          markEntityRefreshedStatement.setString(1, entityId);
+          markEntityRefreshedStatement.setTimestamp(2, now);
+          markEntityRefreshedStatement.addBatch();
+        }
+        markEntityRefreshedStatement.executeBatch();
+
+        for (String entityId : byEntity.keySet()) {
+          findEntityCorrectionsPreparedStatement.setString(1, entityId);
+          ResultSet resultSet = findEntityCorrectionsPreparedStatement.executeQuery();
+          while (resultSet.next()) {
+            if (State.fromString(resultSet.getString("state")) == State.PROPOSED) {
+              proposedCorrections.put(resultSet.getInt("id"), resultSet.getString("constraintType"));
+            } else {
+              otherCorrections.add(resultSet.getInt("id"));
+            }
+          }
+        }
+
+        writeConnection.commit();
+      } catch (SQLException | RuntimeException e) {
+        writeConnection.rollback();
+        throw e;
+      }
+    } catch (SQLException | RuntimeException e) {
+      LOGGER.error(e.getMessage(), e);
+      for (PendingWrite write : batch) {
+        write.future.completeExceptionally(e);
+      }
+      return;
+    }
+    proposedCorrections.forEach(pendingCorrections::add);
+    otherCorrections.forEach(pendingCorrections::remove);
+    for (String entityId : byEntity.keySet()) {
+      for (Consumer<String> listener : entityChangeListeners) {
+        try {
+          listener.accept(entityId);
+        } catch (RuntimeException e) {
+          //The batch is committed, a listener failure should not fail it
+          LOGGER.error(e.getMessage(), e);
+        }
+      }
+    }
+    for (PendingWrite write : batch) {
+      write.future.complete(null);
+    }
+  }
+
+  /**
+   * Returns the cursor of the last bootstrap, if any
+   */
+  synchronized Optional<BootstrapCursor> getBootstrapCursor() {
+    try {
+      ResultSet resultSet = getBootstrapCursorStatement.executeQuery();
+      if (resultSet.next()) {
+        return Optional.of(new BootstrapCursor(
+                resultSet.getInt("queryHash"),
+                resultSet.getTimestamp("created").toInstant(),
+                resultSet.getInt("position")
+        ));
+      }
     } catch (SQLException e) {
       LOGGER.error(e.getMessage(), e);
     }
+    return Optional.empty();
   }
 
-  synchronized void addViolation(String entityId, String propertyId, String statementId, String constraintId, String constraintType, String message, Map<String, String> edit) {
+  /**
+   * Returns the entities snapshot of the last bootstrap, in processing order
+   */
+  synchronized List<String> getBootstrapEntities() {
+    List<String> results = new ArrayList<>();
     try {
-      Optional<State> currentState = getViolationState(statementId, constraintId);
-      //Java 9+: use ifPresentOrElse
-      if (currentState.isPresent()) {
-        if (currentState.get() == State.OBSOLETE) {
-          PreparedStatement preparedUpdateStatement = updateViolationStatusStatement;
-          preparedUpdateStatement.setString(1, State.PROPOSED.toString());
-          preparedUpdateStatement.setString(2, statementId);
-          preparedUpdateStatement.setString(3, constraintId);
-          preparedUpdateStatement.executeUpdate();
+      ResultSet resultSet = getBootstrapEntitiesStatement.executeQuery();
+      while (resultSet.next()) {
+        results.add(resultSet.getString("entityId"));
+      }
+    } catch (SQLException e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+    return results;
+  }
+
+  /**
+   * Replaces the bootstrap snapshot by the given entities and resets the cursor to the first of them
+   */
+  synchronized void startBootstrap(int queryHash, List<String> entityIds) {
+    try {
+      connection.setAutoCommit(false);
+      try {
+        connection.createStatement().execute("DELETE FROM bootstrap");
+        connection.createStatement().execute("DELETE FROM bootstrap_entity");
+        try (PreparedStatement insertEntityStatement = connection.prepareStatement("INSERT INTO bootstrap_entity (position, entityId) VALUES (?, ?)")) {
+          for (int i = 0; i < entityIds.size(); i++) {
+            insertEntityStatement.setInt(1, i);
+            insertEntityStatement.setString(2, entityIds.get(i));
+            insertEntityStatement.addBatch();
+          }
+          insertEntityStatement.executeBatch();
+        }
+        try (PreparedStatement insertCursorStatement = connection.prepareStatement("INSERT INTO bootstrap (id, queryHash, created, position) VALUES (0, ?, ?, 0)")) {
+          insertCursorStatement.setInt(1, queryHash);
+          insertCursorStatement.setTimestamp(2, Timestamp.from(Instant.now()));
+          insertCursorStatement.executeUpdate();
         }
-      } else {
-        PreparedStatement preparedInsertStatement = insertionPreparedStatement;
-        preparedInsertStatement.setString(1, entityId);
-        preparedInsertStatement.setString(2, propertyId);
-        preparedInsertStatement.setString(3, statementId);
-        preparedInsertStatement.setString(4, constraintId);
-        preparedInsertStatement.setString(5, constraintType);
-        preparedInsertStatement.setString(6, message);
-        preparedInsertStatement.setString(7, OBJECT_MAPPER.writeValueAsString(edit));
-        preparedInsertStatement.executeUpdate();
-      }
-    } catch (SQLException | JsonProcessingException e) {
+        connection.commit();
+      } catch (SQLException e) {
+        connection.rollback();
+        throw e;
+      } finally {
+        connection.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
       LOGGER.error(e.getMessage(), e);
     }
   }
 
-  private synchronized Optional<State> getViolationState(String statementId, String constraintId) throws SQLException {
-    PreparedStatement preparedStatement = getViolationStatusStatement;
-    preparedStatement.setString(1, statementId);
-    preparedStatement.setString(2, constraintId);
-    ResultSet resultSet = preparedStatement.executeQuery();
-    if (resultSet.next()) {
-      return Optional.of(State.fromString(resultSet.getString("state")));
+  synchronized void saveBootstrapPosition(int position) {
+    try {
+      PreparedStatement preparedStatement = updateBootstrapPositionStatement;
+      preparedStatement.setInt(1, position);
+      preparedStatement.executeUpdate();
+    } catch (SQLException e) {
+      LOGGER.error(e.getMessage(), e);
     }
-    return Optional.empty();
   }
 
-  synchronized List<PossibleCorrection> getRandomViolations(int limit) {
+  synchronized Set<String> getEntitiesRefreshedSince(Instant instant) {
+    Set<String> results = new HashSet<>();
     try {
-      PreparedStatement preparedStatement = findViolationsPreparedStatement;
-      preparedStatement.setInt(1, limit);
-      return readPossibleCorrectionsResultSet(preparedStatement.executeQuery());
-    } catch (SQLException | IOException e) {
+      PreparedStatement preparedStatement = getEntitiesRefreshedSinceStatement;
+      preparedStatement.setTimestamp(1, Timestamp.from(instant));
+      ResultSet resultSet = preparedStatement.executeQuery();
+      while (resultSet.next()) {
+        results.add(resultSet.getString("entityId"));
+      }
+    } catch (SQLException e) {
       LOGGER.error(e.getMessage(), e);
     }
-    return Collections.emptyList();
+    return results;
   }
 
-  synchronized List<PossibleCorrection> getRandomViolationsForConstraintType(String constraintType, int limit) {
+  /**
+   * If some corrections of the given constraint type have been proposed since the database has been opened
+   */
+  boolean hasConstraintType(String constraintType) {
+    return pendingCorrections.hasConstraintType(constraintType);
+  }
+
+  List<PossibleCorrection> getRandomViolations(int limit) {
+    return getViolations(pendingCorrections.sample(limit));
+  }
+
+  List<PossibleCorrection> getRandomViolationsForConstraintType(String constraintType, int limit) {
+    return getViolations(pendingCorrections.sample(constraintType, limit));
+  }
+
+  private synchronized List<PossibleCorrection> getViolations(List<Integer> ids) {
+    if (ids.isEmpty()) {
+      return Collections.emptyList();
+    }
     try {
-      PreparedStatement preparedStatement = findViolationsForConstraintTypePreparedStatement;
-      preparedStatement.setString(1, constraintType);
-      preparedStatement.setInt(2, limit);
-      return readPossibleCorrectionsResultSet(preparedStatement.executeQuery());
+      PreparedStatement preparedStatement = findViolationsPreparedStatement;
+      preparedStatement.setArray(1, connection.createArrayOf("INTEGER", ids.toArray()));
+      Map<Integer, PossibleCorrection> byId = new HashMap<>();
+      for (PossibleCorrection correction : readPossibleCorrectionsResultSet(preparedStatement.executeQuery())) {
+        byId.put(correction.getId(), correction);
+      }
+      //We keep the random order and forget the ids that are not proposed anymore
+      List<PossibleCorrection> results = new ArrayList<>(ids.size());
+      for (int id : ids) {
+        PossibleCorrection correction = byId.get(id);
+        if (correction == null) {
+          pendingCorrections.remove(id);
+        } else {
+          results.add(correction);
+        }
+      }
+      return results;
     } catch (SQLException | IOException e) {
       LOGGER.error(e.getMessage(), e);
     }
@@ -167,6 +432,7 @@ final class ViolationDatabase implements AutoCloseable {
       preparedStatement.setString(2, user);
       preparedStatement.setInt(3, id);
       preparedStatement.executeUpdate();
+      pendingCorrections.remove(id);
     } catch (SQLException e) {
       LOGGER.error(e.getMessage(), e);
     }
@@ -192,13 +458,85 @@ final class ViolationDatabase implements AutoCloseable {
 
   @Override
   public void close() {
+    //We finish the queued writes
+    writeQueue.add(END_OF_WRITES);
     try {
+      writer.join();
+    } catch (InterruptedException e) {
+      writer.interrupt();
+      Thread.currentThread().interrupt();
+    }
+    try {
+      writeConnection.close();
       connection.close();
     } catch (SQLException e) {
       LOGGER.error(e.getMessage(), e);
     }
   }
 
+  /**
+   * The proposed violations of an entity
+   */
+  static final class EntityViolations {
+    private final String entityId;
+    private final List<String[]> violations = new ArrayList<>();
+
+    EntityViolations(String entityId) {
+      this.entityId = entityId;
+    }
+
+    void add(String propertyId, String statementId, String constraintId, String constraintType, String message, Map<String, String> edit) {
+      try {
+        violations.add(new String[]{entityId, propertyId, statementId, constraintId, constraintType, message, OBJECT_MAPPER.writeValueAsString(edit)});
+      } catch (JsonProcessingException e) {
+        LOGGER.error(e.getMessage(), e);
+      }
+    }
+  }
+
+  private static final class PendingWrite {
+    private final EntityViolations violations;
+    private final CompletableFuture<Void> future;
+
+    private PendingWrite(EntityViolations violations, CompletableFuture<Void> future) {
+      this.violations = violations;
+      this.future = future;
+    }
+  }
+
+  static final class BootstrapCursor {
+    private final int queryHash;
+    private final Instant created;
+    private final int position;
+
+    private BootstrapCursor(int queryHash, Instant created, int position) {
+      this.queryHash = queryHash;
+      this.created = created;
+      this.position = position;
+    }
+
+    /**
+     * Hash of the query used to build the entities snapshot
+     */
+    int getQueryHash() {
+      return queryHash;
+    }
+
+    /**
+     * Creation time of the entities snapshot
+     */
+    Instant getCreated() {
+      return created;
+    }
+
+    /**
+     * Position in the snapshot of the first entity that might not be processed yet
+     */
+    int getPosition() {
+      return position;
+    }
+  }
+
   enum State {
     PROPOSED,
     APPROVED,
@@ -11,6 +11,7 @@ import org.eclipse.rdf4j.model.Model;
 import org.eclipse.rdf4j.model.ValueFactory;
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
 import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.RDFParseException;
 import org.eclipse.rdf4j.rio.Rio;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,10 +22,22 @@ import org.wikidata.history.sparql.Vocabulary;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
-import java.net.SocketTimeoutException;
 import java.net.URI;
-import java.util.concurrent.TimeUnit;
-
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Loads the entities violations into the database.
+ * <p>
+ * Each entity goes through a pipeline: its RDF data is downloaded from Special:EntityData then its constraint violations
+ * are retrieved with wbcheckconstraints, in batches of entities, and the possible corrections are saved.
+ * The HTTP requests are done by a fixed number of workers, rate limited by a token bucket and retried with an
+ * exponential backoff. The number of entities in the pipeline is bounded so that the submitters wait when it is full.
+ */
 final class ViolationDatabaseUpdater implements AutoCloseable {
 
   private static final String CONSTRAINT_TYPES = "wd:Q21502838 wd:Q21510859 wd:Q21510865 wd:Q21510855 wd:Q21510862 wd:Q19474404 wd:Q21502410 wd:Q21503247 wd:Q21510864 wd:Q21503250 wd:Q21510865"; //TODO: update
@@ -35,199 +48,448 @@ final class ViolationDatabaseUpdater implements AutoCloseable {
           "  ?entity ?subjectProperty ?statement .\n" +
           "} LIMIT 300000";
 
+  static final HttpUrl WIKIDATA_URL = HttpUrl.get("https://www.wikidata.org/");
+  static final double DEFAULT_REQUESTS_PER_SECOND = 2;
+  static final int DEFAULT_CONCURRENCY = 2;
+
   private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
   private static final Logger LOGGER = LoggerFactory.getLogger(ViolationDatabaseUpdater.class);
   private static final ValueFactory VALUE_FACTORY = SimpleValueFactory.getInstance();
-  private static final OkHttpClient CLIENT = new OkHttpClient.Builder()
-          .connectTimeout(10, TimeUnit.SECONDS)
-          .readTimeout(10, TimeUnit.SECONDS)
-          .retryOnConnectionFailure(false)
-          .build();
-
-  private final Callback newEditDataCallback;
+  private static final int CHECK_CONSTRAINTS_BATCH_SIZE = 50; //The maximal number of ids allowed by the API
+  private static final long BATCH_FLUSH_DELAY_SECONDS = 10;
+  private static final int MAX_ATTEMPTS = 5;
+  private static final long INITIAL_BACKOFF_MS = 1000;
+  private static final long MAX_BACKOFF_MS = 60000;
+  private static final int PROGRESS_INTERVAL = 1000;
+  private static final Duration BOOTSTRAP_SNAPSHOT_MAX_AGE = Duration.ofDays(7);
+  private static final Duration REFRESH_MIN_AGE = Duration.ofDays(1);
+
+  private final ViolationDatabase violationDatabase;
+  private final CorrectionLookup correctionLookup;
+  private final HttpUrl wikidataUrl;
+  private final TokenBucket rateLimiter;
+  private final ExecutorService workers;
+  private final int maxPendingEntities;
+  private final Semaphore pendingEntities;
+  private final Map<String, Model> checkBatch = new LinkedHashMap<>();
+  private final AtomicLong doneEntities = new AtomicLong();
+  private final AtomicLong failedEntities = new AtomicLong();
+  private volatile BootstrapProgress bootstrapProgress;
+  private ScheduledExecutorService batchFlusher;
   private EventSource eventSource;
 
   ViolationDatabaseUpdater(ViolationDatabase violationDatabase, CorrectionLookup correctionLookup) {
-    this.newEditDataCallback = new NewEditDataCallback(violationDatabase, correctionLookup);
+    this(violationDatabase, correctionLookup, WIKIDATA_URL, DEFAULT_REQUESTS_PER_SECOND, DEFAULT_CONCURRENCY);
   }
 
+  /**
+   * @param wikidataUrl       base URL of the Wikidata server, e.g. {@link #WIKIDATA_URL}
+   * @param requestsPerSecond the maximal sustained number of HTTP requests per second
+   * @param concurrency       the maximal number of HTTP requests in flight
+   */
+  ViolationDatabaseUpdater(ViolationDatabase violationDatabase, CorrectionLookup correctionLookup, HttpUrl wikidataUrl, double requestsPerSecond, int concurrency) {
+    this.violationDatabase = violationDatabase;
+    this.correctionLookup = correctionLookup;
+    this.wikidataUrl = wikidataUrl;
+    this.rateLimiter = new TokenBucket(requestsPerSecond, concurrency);
+    this.workers = Executors.newFixedThreadPool(concurrency);
+    //Enough room to fill a batch while the other workers are downloading entities
+    this.maxPendingEntities = CHECK_CONSTRAINTS_BATCH_SIZE + 2 * concurrency;
+    this.pendingEntities = new Semaphore(maxPendingEntities);
+  }
+
+  /**
+   * Loads the entities with violations returned by the Wikidata Query Service.
+   * <p>
+   * The query result is saved in the database and the position in it is regularly saved, so that a restart
+   * resumes from this position and retries the entities that failed with a retryable error.
+   * The entities refreshed recently are skipped.
+   */
   void loadFromWikidataQuery() {
-    try (WikidataSPARQLEndpoint endpoint = new WikidataSPARQLEndpoint()) {
-      endpoint.executeTupleQuery(QUERY).stream().forEach(bindingSet -> {
-        IRI entity = (IRI) bindingSet.getValue("entity");
-        Request request = new Request.Builder()
-                .url("https://www.wikidata.org/wiki/Special:EntityData/" + entity.getLocalName() + ".ttl?flavor=dump")
-                .addHeader("User-Agent", Constants.USER_AGENT)
-                .build();
-        CLIENT.newCall(request).enqueue(newEditDataCallback);
-        try {
-          Thread.sleep(3000); //We avoid to overload the server
-        } catch (InterruptedException e) {
-          //We don't care much
-        }
-      });
+    List<String> entityIds;
+    int start;
+    Optional<ViolationDatabase.BootstrapCursor> cursor = violationDatabase.getBootstrapCursor();
+    if (cursor.isPresent() && cursor.get().getQueryHash() == QUERY.hashCode() &&
+            cursor.get().getCreated().isAfter(Instant.now().minus(BOOTSTRAP_SNAPSHOT_MAX_AGE))) {
+      entityIds = violationDatabase.getBootstrapEntities();
+      start = Math.min(cursor.get().getPosition(), entityIds.size());
+      LOGGER.info("Resuming the load of " + entityIds.size() + " entities from position " + start);
+    } else {
+      try (WikidataSPARQLEndpoint endpoint = new WikidataSPARQLEndpoint()) {
+        entityIds = endpoint.executeTupleQuery(QUERY).stream()
+                .map(bindingSet -> ((IRI) bindingSet.getValue("entity")).getLocalName())
+                .collect(Collectors.toList());
+      }
+      violationDatabase.startBootstrap(QUERY.hashCode(), entityIds);
+      start = 0;
     }
+    load(entityIds, start);
+  }
+
+  /**
+   * Loads the entities of the snapshot from the given position and saves the progress as the bootstrap cursor
+   */
+  void load(List<String> entityIds, int start) {
+    BootstrapProgress progress = new BootstrapProgress(entityIds, start);
+    Set<String> recentlyRefreshed = violationDatabase.getEntitiesRefreshedSince(Instant.now().minus(REFRESH_MIN_AGE));
+    List<String> toLoad = new ArrayList<>();
+    for (String entityId : entityIds.subList(start, entityIds.size())) {
+      if (recentlyRefreshed.contains(entityId)) {
+        progress.done(entityId);
+      } else {
+        toLoad.add(entityId);
+      }
+    }
+    LOGGER.info((entityIds.size() - start - toLoad.size()) + " entities refreshed recently are skipped");
+
+    bootstrapProgress = progress;
+    try {
+      load(toLoad);
+    } finally {
+      bootstrapProgress = null;
+      violationDatabase.saveBootstrapPosition(progress.getPosition());
+    }
+  }
+
+  /**
+   * Loads the given entities and waits for the end of their processing
+   */
+  void load(Iterable<String> entityIds) {
+    try {
+      for (String entityId : entityIds) {
+        submit(entityId);
+      }
+      //We wait for the pipeline to be empty, sending the last incomplete batches
+      while (!pendingEntities.tryAcquire(maxPendingEntities, 1, TimeUnit.SECONDS)) {
+        flushCheckBatch();
+      }
+      pendingEntities.release(maxPendingEntities);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    LOGGER.info("Entities loading done: " + doneEntities.get() + " entities processed, " + failedEntities.get() + " failed");
   }
 
   void startToLoadFromRecentChanges() {
+    batchFlusher = Executors.newSingleThreadScheduledExecutor();
+    batchFlusher.scheduleWithFixedDelay(this::flushCheckBatch, BATCH_FLUSH_DELAY_SECONDS, BATCH_FLUSH_DELAY_SECONDS, TimeUnit.SECONDS);
     eventSource = (new EventSource.Builder(
-            new ViolationEventHandler(newEditDataCallback),
+            new ViolationEventHandler(this),
             URI.create("https://stream.wikimedia.org/v2/stream/revision-create"))
     ).build();
     eventSource.start();
   }
 
-  @Override
-  public void close() {
-    if (eventSource != null) {
-      eventSource.close();
+  /**
+   * Adds an entity to the pipeline, waiting if the pipeline is full
+   */
+  void submit(String entityId) throws InterruptedException {
+    pendingEntities.acquire();
+    try {
+      workers.execute(() -> fetchEntityData(entityId));
+    } catch (RejectedExecutionException e) {
+      pendingEntities.release();
+      throw e;
     }
   }
 
-  private static final class ViolationEventHandler implements EventHandler {
-
-    private final Callback newEditDataCallback;
+  private void fetchEntityData(String entityId) {
+    HttpUrl url = wikidataUrl.newBuilder()
+            .addPathSegments("wiki/Special:EntityData")
+            .addPathSegment(entityId + ".ttl")
+            .addQueryParameter("flavor", "dump")
+            .build();
+    try {
+      Model data = execute(url, body -> {
+        try (Reader reader = body.charStream()) {
+          return Rio.parse(reader, url.toString(), RDFFormat.TURTLE);
+        } catch (RDFParseException e) {
+          throw new IOException(e);
+        }
+      });
+      addToCheckBatch(entityId, data);
+    } catch (NotRetryableException e) {
+      //e.g. the entity has been deleted
+      LOGGER.warn("Failed to retrieve the data of " + entityId + ", it is not retried: " + e.getMessage());
+      onEntityDone(entityId, false, false);
+    } catch (IOException e) {
+      LOGGER.warn("Failed to retrieve the data of " + entityId + ": " + e.getMessage(), e);
+      onEntityDone(entityId, false, true);
+    } catch (InterruptedException e) {
+      onEntityDone(entityId, false, true);
+      Thread.currentThread().interrupt();
+    }
+  }
 
-    private ViolationEventHandler(Callback newEditDataCallback) {
-      this.newEditDataCallback = newEditDataCallback;
+  private void addToCheckBatch(String entityId, Model data) {
+    Map<String, Model> batch = null;
+    synchronized (checkBatch) {
+      checkBatch.put(entityId, data);
+      if (checkBatch.size() >= CHECK_CONSTRAINTS_BATCH_SIZE) {
+        batch = new LinkedHashMap<>(checkBatch);
+        checkBatch.clear();
+      }
+    }
+    if (batch != null) {
+      submitCheckBatch(batch);
     }
+  }
 
-    @Override
-    public void onOpen() {
+  private void flushCheckBatch() {
+    Map<String, Model> batch;
+    synchronized (checkBatch) {
+      if (checkBatch.isEmpty()) {
+        return;
+      }
+      batch = new LinkedHashMap<>(checkBatch);
+      checkBatch.clear();
     }
+    submitCheckBatch(batch);
+  }
 
-    @Override
-    public void onClosed() {
+  private void submitCheckBatch(Map<String, Model> batch) {
+    try {
+      workers.execute(() -> checkConstraints(batch));
+    } catch (RejectedExecutionException e) {
+      batch.keySet().forEach(entityId -> onEntityDone(entityId, false, true));
     }
+  }
 
-    @Override
-    public void onMessage(String s, MessageEvent messageEvent) throws IOException {
-      JsonNode data = OBJECT_MAPPER.readTree(messageEvent.getData());
-      if ("wikibase-item".equals(data.get("rev_content_model").textValue()) && "wikidatawiki".equals(data.get("database").textValue()) && data.get("rev_content_changed").asBoolean()) {
-        onItemChange(data.get("page_title").textValue());
+  private void checkConstraints(Map<String, Model> batch) {
+    HttpUrl url = wikidataUrl.newBuilder()
+            .addPathSegments("w/api.php")
+            .addQueryParameter("action", "wbcheckconstraints")
+            .addQueryParameter("format", "json")
+            .addQueryParameter("id", String.join("|", batch.keySet()))
+            .build();
+    Map<String, CompletableFuture<Void>> saved = new HashMap<>();
+    boolean retryable = true;
+    try {
+      JsonNode result = execute(url, body -> {
+        try (InputStream inputStream = body.byteStream()) {
+          return OBJECT_MAPPER.readTree(inputStream);
+        }
+      }).get("wbcheckconstraints");
+      if (result == null) {
+        throw new IOException("No wbcheckconstraints result for " + batch.keySet());
+      }
+      result.fields().forEachRemaining(entityViolations -> {
+        Model data = batch.get(entityViolations.getKey());
+        if (data == null) {
+          LOGGER.warn("Unexpected entity in the wbcheckconstraints result: " + entityViolations.getKey());
+        } else {
+          saved.put(entityViolations.getKey(), saveViolations(entityViolations.getKey(), entityViolations.getValue(), data));
+        }
+      });
+    } catch (NotRetryableException e) {
+      LOGGER.warn("Failed to check the constraints of " + batch.keySet() + ", they are not retried: " + e.getMessage());
+      retryable = false;
+    } catch (IOException e) {
+      LOGGER.warn("Failed to check the constraints of " + batch.keySet() + ": " + e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      //The entities are done when their violations are written
+      for (String entityId : batch.keySet()) {
+        CompletableFuture<Void> future = saved.get(entityId);
+        if (future == null) {
+          onEntityDone(entityId, false, retryable);
+        } else {
+          future.whenComplete((result, e) -> onEntityDone(entityId, e == null, e != null));
+        }
       }
     }
+  }
 
-    private void onItemChange(String itemId) {
-      Request request = new Request.Builder()
-              .url("https://www.wikidata.org/wiki/Special:EntityData/" + itemId + ".ttl?flavor=dump")
-              .addHeader("User-Agent", Constants.USER_AGENT)
-              .build();
-      CLIENT.newCall(request).enqueue(newEditDataCallback);
-    }
+  private CompletableFuture<Void> saveViolations(String entityId, JsonNode entityViolations, Model data) {
+    IRI entity = VALUE_FACTORY.createIRI(Vocabulary.WD_NAMESPACE, entityId);
+    WikidataEditBuilder editBuilder = new WikidataEditBuilder(data);
+    ViolationDatabase.EntityViolations violations = new ViolationDatabase.EntityViolations(entity.getLocalName());
+    entityViolations.get("claims").fields().forEachRemaining(propertyWithClaims -> {
+      IRI property = VALUE_FACTORY.createIRI(Vocabulary.WDT_NAMESPACE, propertyWithClaims.getKey());
+      propertyWithClaims.getValue().forEach(v3 -> {
+        IRI statement = buildStatementIRI(v3.get("id").textValue());
+        v3.get("mainsnak").get("results").forEach(violation -> {
+          String message = violation.get("message-html").textValue();
+          IRI constraint = buildStatementIRI(violation.get("constraint").get("id").textValue());
+          IRI type = VALUE_FACTORY.createIRI(Vocabulary.WD_NAMESPACE, violation.get("constraint").get("type").textValue());
+          correctionLookup.buildPossibleCorrection(constraint, entity, property, statement, data)
+                  .flatMap(editBuilder::buildEdit)
+                  .ifPresent(correction ->
+                          violations.add(
+                                  property.getLocalName(),
+                                  statement.getLocalName(),
+                                  constraint.getLocalName(),
+                                  type.getLocalName(),
+                                  message,
+                                  correction
+                          )
+                  );
+        });
+      });
+    });
+    return violationDatabase.saveEntityViolations(violations);
+  }
 
-    @Override
-    public void onComment(String s) {
+  private static IRI buildStatementIRI(String id) {
+    return VALUE_FACTORY.createIRI(Vocabulary.WDS_NAMESPACE, id.replace('$', '-'));
+  }
 
+  /**
+   * @param retryable if the entity failed and should be loaded again when the bootstrap is resumed
+   */
+  private void onEntityDone(String entityId, boolean success, boolean retryable) {
+    if (!success) {
+      failedEntities.incrementAndGet();
     }
-
-    @Override
-    public void onError(Throwable throwable) {
-      LOGGER.warn(throwable.getMessage(), throwable);
+    BootstrapProgress progress = bootstrapProgress;
+    if (progress != null && !retryable) {
+      progress.done(entityId);
+    }
+    long done = doneEntities.incrementAndGet();
+    if (done % PROGRESS_INTERVAL == 0) {
+      LOGGER.info("Entities loading progress: " + done + " entities processed, " + failedEntities.get() + " failed");
+      if (progress != null) {
+        violationDatabase.saveBootstrapPosition(progress.getPosition());
+      }
     }
+    pendingEntities.release();
   }
 
+  /**
+   * Executes a GET request, rate limited and retried with an exponential backoff on network errors,
+   * 429 and 5xx responses. The other error responses throw a {@link NotRetryableException}.
+   */
+  private <T> T execute(HttpUrl url, ResponseParser<T> parser) throws IOException, InterruptedException {
+    Request request = new Request.Builder()
+            .url(url)
+            .addHeader("User-Agent", Constants.USER_AGENT)
+            .build();
+    long backoff = INITIAL_BACKOFF_MS;
+    for (int attempt = 1; ; attempt++) {
+      rateLimiter.acquire();
+      IOException error;
+      boolean retryable = true;
+      try (Response response = WikidataApiClient.HTTP_CLIENT.newCall(request).execute()) {
+        ResponseBody body = response.body();
+        if (response.isSuccessful() && body != null) {
+          return parser.parse(body);
+        }
+        retryable = response.code() == 429 || response.code() >= 500;
+        error = retryable ? new IOException("Unexpected code " + response) : new NotRetryableException("Unexpected code " + response);
+        backoff = Math.max(backoff, retryAfter(response));
+      } catch (IOException e) {
+        error = e;
+      }
+      if (!retryable || attempt >= MAX_ATTEMPTS) {
+        throw error;
+      }
+      Thread.sleep(backoff);
+      backoff = Math.min(2 * backoff, MAX_BACKOFF_MS);
+    }
+  }
 
-  private static final class NewEditDataCallback implements Callback {
-
-    private final ViolationDatabase violationDatabase;
-    private final CorrectionLookup correctionLookup;
+  private static long retryAfter(Response response) {
+    String retryAfter = response.header("Retry-After");
+    if (retryAfter != null) {
+      try {
+        return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+      } catch (NumberFormatException e) {
+        //It's an HTTP date, we rely on the exponential backoff
+      }
+    }
+    return 0;
+  }
 
-    private NewEditDataCallback(ViolationDatabase violationDatabase, CorrectionLookup correctionLookup) {
-      this.violationDatabase = violationDatabase;
-      this.correctionLookup = correctionLookup;
+  @Override
+  public void close() {
+    if (eventSource != null) {
+      eventSource.close();
     }
+    if (batchFlusher != null) {
+      batchFlusher.shutdownNow();
+    }
+    workers.shutdownNow();
+  }
 
-    @Override
-    public void onFailure(Call call, IOException e) {
-      if (!(e instanceof SocketTimeoutException)) {
-        LOGGER.warn(e.getMessage(), e);
+  /**
+   * Tracks the processed entities of a bootstrap snapshot.
+   * The position is the one of the first entity not processed yet: the entities are processed out of order.
+   * An entity that failed with a retryable error stops the position so that it is loaded again on resume,
+   * the entities after it that succeeded being skipped then as recently refreshed.
+   * The entities that failed with a not retryable error (e.g. deleted since the snapshot) are considered as processed.
+   */
+  private static final class BootstrapProgress {
+    private final Map<String, Integer> pendingPositions = new HashMap<>();
+    private final BitSet done = new BitSet();
+    private int position;
+
+    private BootstrapProgress(List<String> entityIds, int start) {
+      for (int i = start; i < entityIds.size(); i++) {
+        pendingPositions.put(entityIds.get(i), i);
       }
+      position = start;
     }
 
-    @Override
-    public void onResponse(Call call, Response response) throws IOException {
-      HttpUrl url = response.request().url();
-      String entityId = url.pathSegments().get(url.pathSize() - 1).replace(".ttl", "");
-      try (ResponseBody body = response.body()) {
-        if (body == null) {
-          throw new IOException("Unexpected code " + response);
-        }
-        try (Reader reader = body.charStream()) {
-          Model data = Rio.parse(reader, url.toString(), RDFFormat.TURTLE);
-          Request request = new Request.Builder()
-                  .url("https://www.wikidata.org/w/api.php?action=wbcheckconstraints&format=json&id=" + entityId)
-                  .addHeader("User-Agent", Constants.USER_AGENT)
-                  .build();
-          CLIENT.newCall(request).enqueue(new WbCheckConstraintsCallback(violationDatabase, correctionLookup, data));
-        }
+    private synchronized void done(String entityId) {
+      Integer entityPosition = pendingPositions.remove(entityId);
+      if (entityPosition != null) {
+        done.set(entityPosition);
+        position = done.nextClearBit(position);
       }
     }
+
+    private synchronized int getPosition() {
+      return position;
+    }
   }
 
-  private static final class WbCheckConstraintsCallback implements Callback {
+  /**
+   * An error response that would be the same if the request was retried
+   */
+  private static final class NotRetryableException extends IOException {
+    private NotRetryableException(String message) {
+      super(message);
+    }
+  }
 
-    private final ViolationDatabase violationDatabase;
-    private final CorrectionLookup correctionLookup;
-    private final WikidataEditBuilder editBuilder;
-    private final Model data;
+  @FunctionalInterface
+  private interface ResponseParser<T> {
+    T parse(ResponseBody body) throws IOException;
+  }
 
-    private WbCheckConstraintsCallback(ViolationDatabase violationDatabase, CorrectionLookup correctionLookup, Model data) {
-      this.violationDatabase = violationDatabase;
-      this.data = data;
-      this.correctionLookup = correctionLookup;
-      this.editBuilder = new WikidataEditBuilder(data);
+  private static final class ViolationEventHandler implements EventHandler {
+
+    private final ViolationDatabaseUpdater updater;
+
+    private ViolationEventHandler(ViolationDatabaseUpdater updater) {
+      this.updater = updater;
     }
 
     @Override
-    public void onFailure(Call call, IOException e) {
-      if (!(e instanceof SocketTimeoutException)) {
-        LOGGER.warn(e.getMessage(), e);
-      }
+    public void onOpen() {
     }
 
     @Override
-    public void onResponse(Call call, Response response) throws IOException {
-      try (ResponseBody responseBody = response.body()) {
-        if (responseBody == null || !response.isSuccessful()) {
-          throw new IOException("Unexpected code " + response);
-        }
+    public void onClosed() {
+    }
 
-        try (InputStream inputStream = responseBody.byteStream()) {
-          OBJECT_MAPPER.readTree(inputStream).get("wbcheckconstraints").fields().forEachRemaining(entityViolations -> {
-            IRI entity = VALUE_FACTORY.createIRI(Vocabulary.WD_NAMESPACE, entityViolations.getKey());
-            violationDatabase.clearProposedViolations(entity.getLocalName());
-            entityViolations.getValue().get("claims").fields().forEachRemaining(propertyWithClaims -> {
-              IRI property = VALUE_FACTORY.createIRI(Vocabulary.WDT_NAMESPACE, propertyWithClaims.getKey());
-              propertyWithClaims.getValue().forEach(v3 -> {
-                IRI statement = buildStatementIRI(v3.get("id").textValue());
-                v3.get("mainsnak").get("results").forEach(violation -> {
-                  String message = violation.get("message-html").textValue();
-                  IRI constraint = buildStatementIRI(violation.get("constraint").get("id").textValue());
-                  IRI type = VALUE_FACTORY.createIRI(Vocabulary.WD_NAMESPACE, violation.get("constraint").get("type").textValue());
-                  correctionLookup.buildPossibleCorrection(constraint, entity, property, statement, data)
-                          .flatMap(editBuilder::buildEdit)
-                          .ifPresent(correction ->
-                                  violationDatabase.addViolation(
-                                          entity.getLocalName(),
-                                          property.getLocalName(),
-                                          statement.getLocalName(),
-                                          constraint.getLocalName(),
-                                          type.getLocalName(),
-                                          message,
-                                          correction
-                                  )
-                          );
-                });
-              });
-            });
-          });
-        }
+    @Override
+    public void onMessage(String s, MessageEvent messageEvent) throws Exception {
+      JsonNode data = OBJECT_MAPPER.readTree(messageEvent.getData());
+      if ("wikibase-item".equals(data.get("rev_content_model").textValue()) && "wikidatawiki".equals(data.get("database").textValue()) && data.get("rev_content_changed").asBoolean()) {
+        updater.submit(data.get("page_title").textValue());
       }
     }
 
-    private static IRI buildStatementIRI(String id) {
-      return VALUE_FACTORY.createIRI(Vocabulary.WDS_NAMESPACE, id.replace('$', '-'));
+    @Override
+    public void onComment(String s) {
+
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      LOGGER.warn(throwable.getMessage(), throwable);
     }
   }
 }
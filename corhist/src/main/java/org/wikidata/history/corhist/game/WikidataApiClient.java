@@ -0,0 +1,221 @@
+package org.wikidata.history.corhist.game;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.history.corhist.Constants;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client for the Wikidata read API shared by the game package.
+ * <p>
+ * Responses are cached in a LRU cache with a time to live, keyed by the sorted request parameters.
+ * The cache is bounded by the total size of the cached responses bodies and the expired entries are removed when found.
+ * Concurrent identical calls are coalesced into a single HTTP request.
+ * The uncached calls bypass both.
+ * All the HTTP requests of the package share the connection pool of {@link #HTTP_CLIENT}.
+ */
+final class WikidataApiClient {
+
+  static final OkHttpClient HTTP_CLIENT = new OkHttpClient.Builder()
+          .connectionPool(new ConnectionPool(16, 5, TimeUnit.MINUTES))
+          .connectTimeout(10, TimeUnit.SECONDS)
+          .readTimeout(10, TimeUnit.SECONDS)
+          .retryOnConnectionFailure(false)
+          .build();
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WikidataApiClient.class);
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+  private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(8, runnable -> {
+    Thread thread = new Thread(runnable, "wikidata-api-client");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private static final WikidataApiClient DEFAULT = new WikidataApiClient(HttpUrl.get("https://www.wikidata.org/w/api.php"), 64 * 1024 * 1024, TimeUnit.MINUTES.toMillis(5));
+
+  private final HttpUrl apiUrl;
+  private final OkHttpClient client;
+  private final long timeToLiveMs;
+  private final long maxCacheWeight;
+  private final LinkedHashMap<String, CacheEntry> cache = new LinkedHashMap<>(16, 0.75f, true);
+  private long cacheWeight = 0;
+  private final Map<String, CompletableFuture<Optional<JsonNode>>> inFlight = new ConcurrentHashMap<>();
+  private final AtomicLong calls = new AtomicLong();
+  private final AtomicLong cacheHits = new AtomicLong();
+  private final AtomicLong coalescedCalls = new AtomicLong();
+  private final AtomicLong httpRequests = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong httpTimeNs = new AtomicLong();
+
+  /**
+   * @param maxCacheWeight the maximal total size in bytes of the cached responses bodies
+   */
+  WikidataApiClient(HttpUrl apiUrl, long maxCacheWeight, long timeToLiveMs) {
+    this.apiUrl = apiUrl;
+    //Interactive calls: we prefer to fail fast
+    this.client = HTTP_CLIENT.newBuilder()
+            .connectTimeout(1, TimeUnit.SECONDS)
+            .readTimeout(1, TimeUnit.SECONDS)
+            .build();
+    this.timeToLiveMs = timeToLiveMs;
+    this.maxCacheWeight = maxCacheWeight;
+  }
+
+  static WikidataApiClient getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Calls the API with the given parameters (the format is always JSON).
+   * Returns an empty result if the call failed.
+   */
+  Optional<JsonNode> call(Map<String, String> params) {
+    calls.incrementAndGet();
+    String key = cacheKey(params);
+    synchronized (cache) {
+      CacheEntry entry = cache.get(key);
+      if (entry != null) {
+        if (entry.expiration > System.currentTimeMillis()) {
+          cacheHits.incrementAndGet();
+          return Optional.of(entry.value);
+        }
+        cache.remove(key);
+        cacheWeight -= entry.weight;
+      }
+    }
+
+    CompletableFuture<Optional<JsonNode>> future = new CompletableFuture<>();
+    CompletableFuture<Optional<JsonNode>> existing = inFlight.putIfAbsent(key, future);
+    if (existing != null) {
+      coalescedCalls.incrementAndGet();
+      return existing.join();
+    }
+    try {
+      Optional<CacheEntry> entry = execute(params);
+      entry.ifPresent(newEntry -> addToCache(key, newEntry));
+      Optional<JsonNode> result = entry.map(newEntry -> newEntry.value);
+      future.complete(result);
+      return result;
+    } catch (RuntimeException e) {
+      future.complete(Optional.empty());
+      throw e;
+    } finally {
+      inFlight.remove(key);
+    }
+  }
+
+  /**
+   * Does {@link #call(Map)} on a shared pool of threads, to run independent calls concurrently
+   */
+  CompletableFuture<Optional<JsonNode>> callAsync(Map<String, String> params) {
+    return CompletableFuture.supplyAsync(() -> call(params), EXECUTOR);
+  }
+
+  /**
+   * Like {@link #callAsync(Map)} but without using the cache, for the data that should be fresh like the current statements of entities
+   */
+  CompletableFuture<Optional<JsonNode>> callUncachedAsync(Map<String, String> params) {
+    return CompletableFuture.supplyAsync(() -> {
+      calls.incrementAndGet();
+      return execute(params).map(entry -> entry.value);
+    }, EXECUTOR);
+  }
+
+  private void addToCache(String key, CacheEntry entry) {
+    synchronized (cache) {
+      CacheEntry previous = cache.put(key, entry);
+      if (previous != null) {
+        cacheWeight -= previous.weight;
+      }
+      cacheWeight += entry.weight;
+      //We evict the least recently used entries, the new one included if it is alone too big
+      Iterator<CacheEntry> eldest = cache.values().iterator();
+      while (cacheWeight > maxCacheWeight && eldest.hasNext()) {
+        cacheWeight -= eldest.next().weight;
+        eldest.remove();
+      }
+    }
+  }
+
+  Map<String, Long> getMetrics() {
+    Map<String, Long> metrics = new TreeMap<>();
+    metrics.put("calls", calls.get());
+    metrics.put("cache_hits", cacheHits.get());
+    metrics.put("coalesced_calls", coalescedCalls.get());
+    metrics.put("http_requests", httpRequests.get());
+    metrics.put("errors", errors.get());
+    metrics.put("http_time_ms", TimeUnit.NANOSECONDS.toMillis(httpTimeNs.get()));
+    synchronized (cache) {
+      metrics.put("cache_size", (long) cache.size());
+      metrics.put("cache_weight_bytes", cacheWeight);
+    }
+    return metrics;
+  }
+
+  private static String cacheKey(Map<String, String> params) {
+    StringBuilder key = new StringBuilder();
+    for (Map.Entry<String, String> param : new TreeMap<>(params).entrySet()) {
+      key.append(param.getKey()).append('=').append(param.getValue()).append('&');
+    }
+    return key.toString();
+  }
+
+  private Optional<CacheEntry> execute(Map<String, String> params) {
+    HttpUrl.Builder urlBuilder = apiUrl.newBuilder();
+    urlBuilder.addQueryParameter("format", "json");
+    for (Map.Entry<String, String> param : new TreeMap<>(params).entrySet()) {
+      urlBuilder.addQueryParameter(param.getKey(), param.getValue());
+    }
+    Request request = new Request.Builder()
+            .url(urlBuilder.build())
+            .addHeader("User-Agent", Constants.USER_AGENT)
+            .build();
+    httpRequests.incrementAndGet();
+    long start = System.nanoTime();
+    try (Response response = client.newCall(request).execute()) {
+      ResponseBody body = response.body();
+      if (body == null || !response.isSuccessful()) {
+        LOGGER.error("No response : " + response);
+        errors.incrementAndGet();
+        return Optional.empty();
+      }
+      byte[] content = body.bytes();
+      JsonNode result = OBJECT_MAPPER.readTree(content);
+      if (result.has("error")) {
+        //API errors are not cached
+        LOGGER.warn("API error for " + params + ": " + result.get("error"));
+        errors.incrementAndGet();
+        return Optional.empty();
+      }
+      return Optional.of(new CacheEntry(result, content.length, System.currentTimeMillis() + timeToLiveMs));
+    } catch (IOException e) {
+      LOGGER.error(e.getMessage(), e);
+      errors.incrementAndGet();
+      return Optional.empty();
+    } finally {
+      httpTimeNs.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  private static final class CacheEntry {
+    private final JsonNode value;
+    private final long weight;
+    private final long expiration;
+
+    private CacheEntry(JsonNode value, long weight, long expiration) {
+      this.value = value;
+      this.weight = weight;
+      this.expiration = expiration;
+    }
+  }
+}
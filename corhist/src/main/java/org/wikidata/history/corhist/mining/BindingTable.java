@@ -0,0 +1,95 @@
+package org.wikidata.history.corhist.mining;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Table of bindings with one column of {@link TermDictionary} ids per variable.
+ * <p>
+ * Unbound cells contain {@link TermDictionary#UNBOUND}. Rows are only appended: a table is never modified once built.
+ */
+final class BindingTable {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final List<String> variables;
+  private final int[][] columns;
+  private int size = 0;
+
+  BindingTable(List<String> variables) {
+    this(variables, INITIAL_CAPACITY);
+  }
+
+  BindingTable(List<String> variables, int capacity) {
+    this.variables = variables;
+    columns = new int[variables.size()][Math.max(capacity, 1)];
+  }
+
+  List<String> getVariables() {
+    return variables;
+  }
+
+  int getColumnIndex(String variable) {
+    int index = variables.indexOf(variable);
+    if (index == -1) {
+      throw new IllegalArgumentException("Unknown variable: " + variable);
+    }
+    return index;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  int get(int row, int column) {
+    return columns[column][row];
+  }
+
+  /**
+   * Appends a row with the given values, one per variable
+   */
+  void addRow(int... values) {
+    if (values.length != columns.length) {
+      throw new IllegalArgumentException("The row should have " + columns.length + " values");
+    }
+    ensureCapacity();
+    for (int i = 0; i < columns.length; i++) {
+      columns[i][size] = values[i];
+    }
+    size++;
+  }
+
+  /**
+   * Appends a copy of a row of an other table with the same variables and returns the new row index
+   */
+  int addRowFrom(BindingTable table, int row) {
+    ensureCapacity();
+    for (int i = 0; i < columns.length; i++) {
+      columns[i][size] = table.columns[i][row];
+    }
+    return size++;
+  }
+
+  void set(int row, int column, int value) {
+    columns[column][row] = value;
+  }
+
+  /**
+   * Removes the last row, used to roll back a row that turned out not to match
+   */
+  void removeLastRow() {
+    size--;
+  }
+
+  private void ensureCapacity() {
+    if (size == columns[0].length) {
+      for (int i = 0; i < columns.length; i++) {
+        columns[i] = Arrays.copyOf(columns[i], 2 * columns[i].length);
+      }
+    }
+  }
+}
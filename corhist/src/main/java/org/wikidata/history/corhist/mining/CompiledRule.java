@@ -0,0 +1,248 @@
+package org.wikidata.history.corhist.mining;
+
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.common.iteration.CloseableIteratorIteration;
+import org.eclipse.rdf4j.common.iteration.EmptyIteration;
+import org.eclipse.rdf4j.model.*;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.Var;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+
+import java.util.*;
+
+/**
+ * Rule prepared to be applied to single violations.
+ * <p>
+ * Constants are resolved once, each variable gets a slot in a fixed size array and the context patterns are reordered
+ * so that each one is evaluated with as many bound terms as possible. Matching is a backtracking over the context
+ * patterns that stops at the first match, the head only using the violation variables.
+ * It is thread safe.
+ */
+public final class CompiledRule {
+
+  private static final int SUBJECT = 0;
+  private static final int PREDICATE = 1;
+  private static final int OBJECT = 2;
+  private static final int CONTEXT = 3;
+  private static final int NO_SLOT = -1;
+
+  private final Atom[] head;
+  private final Atom violationBody;
+  private final Atom[] contextBody;
+  private final int slotsCount;
+
+  private CompiledRule(Collection<StatementPattern> head, StatementPattern violationBody, List<StatementPattern> contextBody) {
+    Map<String, Integer> slots = new HashMap<>();
+    this.violationBody = new Atom(violationBody, slots);
+    this.contextBody = orderJoins(contextBody, slots);
+    this.head = head.stream().map(pattern -> new Atom(pattern, slots)).toArray(Atom[]::new);
+    slotsCount = slots.size();
+  }
+
+  public static CompiledRule compile(SimpleConstraintRule rule) {
+    return new CompiledRule(rule.getHead(), rule.getViolationBody(), rule.getContextBody());
+  }
+
+  static CompiledRule compile(ConstraintRule rule) {
+    return new CompiledRule(rule.getHead(), rule.getViolationBody(), rule.getContextBody());
+  }
+
+  /**
+   * Greedy join ordering: the next pattern is always the one with the most bound terms, a bound subject counting double
+   */
+  private static Atom[] orderJoins(List<StatementPattern> patterns, Map<String, Integer> slots) {
+    Set<String> boundVariables = new HashSet<>(slots.keySet());
+    List<StatementPattern> remaining = new ArrayList<>(patterns);
+    Atom[] atoms = new Atom[patterns.size()];
+    for (int i = 0; i < atoms.length; i++) {
+      StatementPattern best = remaining.get(0);
+      int bestScore = boundScore(best, boundVariables);
+      for (StatementPattern pattern : remaining) {
+        int score = boundScore(pattern, boundVariables);
+        if (score > bestScore) {
+          best = pattern;
+          bestScore = score;
+        }
+      }
+      remaining.remove(best);
+      atoms[i] = new Atom(best, slots);
+      for (Var var : best.getVarList()) {
+        if (!var.isConstant()) {
+          boundVariables.add(var.getName());
+        }
+      }
+    }
+    return atoms;
+  }
+
+  private static int boundScore(StatementPattern pattern, Set<String> boundVariables) {
+    return 2 * boundScore(pattern.getSubjectVar(), boundVariables) +
+            boundScore(pattern.getPredicateVar(), boundVariables) +
+            boundScore(pattern.getObjectVar(), boundVariables) +
+            boundScore(pattern.getContextVar(), boundVariables);
+  }
+
+  private static int boundScore(Var var, Set<String> boundVariables) {
+    return (var != null && (var.isConstant() || boundVariables.contains(var.getName()))) ? 1 : 0;
+  }
+
+  /**
+   * Returns the correction proposed by the rule for the violation if the rule applies.
+   * The context patterns are evaluated against the model.
+   */
+  public Optional<Set<Statement>> apply(Statement violation, Model model, ValueFactory valueFactory) {
+    return apply(violation, (subject, predicate, object, context) -> new CloseableIteratorIteration<>(
+            (context == null ? model.filter(subject, predicate, object) : model.filter(subject, predicate, object, context)).iterator()
+    ), valueFactory);
+  }
+
+  /**
+   * Returns the correction proposed by the rule for the violation if the rule applies.
+   * The context patterns are evaluated against the repository.
+   * Like with {@link PatternEvaluator}, a pattern whose evaluation fails has no match.
+   */
+  public Optional<Set<Statement>> apply(Statement violation, RepositoryConnection connection, ValueFactory valueFactory) {
+    return apply(violation, (subject, predicate, object, context) -> {
+      try {
+        return context == null ? connection.getStatements(subject, predicate, object) : connection.getStatements(subject, predicate, object, context);
+      } catch (QueryEvaluationException e) {
+        return new EmptyIteration<>();
+      }
+    }, valueFactory);
+  }
+
+  private Optional<Set<Statement>> apply(Statement violation, StatementSource source, ValueFactory valueFactory) {
+    Value[] slots = new Value[slotsCount];
+    if (!violationBody.bind(violation, slots) || !matchContext(0, slots, source)) {
+      return Optional.empty();
+    }
+    Set<Statement> correction = new HashSet<>();
+    for (Atom atom : head) {
+      correction.add(atom.instantiate(slots, valueFactory));
+    }
+    return Optional.of(correction);
+  }
+
+  private boolean matchContext(int position, Value[] slots, StatementSource source) {
+    if (position == contextBody.length) {
+      return true;
+    }
+    Atom atom = contextBody[position];
+    Value subject = atom.get(SUBJECT, slots);
+    Value predicate = atom.get(PREDICATE, slots);
+    Value context = atom.get(CONTEXT, slots);
+    if ((subject != null && !(subject instanceof Resource)) || (predicate != null && !(predicate instanceof IRI)) || (context != null && !(context instanceof Resource))) {
+      return false;
+    }
+    int unboundPositions = atom.getUnboundPositions(slots);
+    CloseableIteration<? extends Statement, ? extends RuntimeException> statements = source.getStatements(
+            (Resource) subject, (IRI) predicate, atom.get(OBJECT, slots), (Resource) context
+    );
+    try {
+      while (statements.hasNext()) {
+        if (atom.bind(statements.next(), slots) && matchContext(position + 1, slots, source)) {
+          return true;
+        }
+        atom.unbind(unboundPositions, slots);
+      }
+      return false;
+    } finally {
+      statements.close();
+    }
+  }
+
+  @FunctionalInterface
+  private interface StatementSource {
+    CloseableIteration<? extends Statement, ? extends RuntimeException> getStatements(Resource subject, IRI predicate, Value object, Resource context);
+  }
+
+  /**
+   * Statement pattern with, for each position, either a constant or a slot
+   */
+  private static final class Atom {
+    private final Value[] constants = new Value[4];
+    private final int[] slots = new int[]{NO_SLOT, NO_SLOT, NO_SLOT, NO_SLOT};
+    private final boolean hasContext;
+
+    private Atom(StatementPattern pattern, Map<String, Integer> slotIndexes) {
+      set(SUBJECT, pattern.getSubjectVar(), slotIndexes);
+      set(PREDICATE, pattern.getPredicateVar(), slotIndexes);
+      set(OBJECT, pattern.getObjectVar(), slotIndexes);
+      set(CONTEXT, pattern.getContextVar(), slotIndexes);
+      hasContext = pattern.getContextVar() != null;
+    }
+
+    private void set(int position, Var var, Map<String, Integer> slotIndexes) {
+      if (var == null) {
+        return;
+      }
+      if (var.isConstant()) {
+        constants[position] = var.getValue();
+      } else {
+        slots[position] = slotIndexes.computeIfAbsent(var.getName(), k -> slotIndexes.size());
+      }
+    }
+
+    /**
+     * @return the value of the position, null if it is not bound yet
+     */
+    private Value get(int position, Value[] values) {
+      return slots[position] == NO_SLOT ? constants[position] : values[slots[position]];
+    }
+
+    /**
+     * @return a bit mask of the positions with a slot not bound yet
+     */
+    private int getUnboundPositions(Value[] values) {
+      int mask = 0;
+      for (int position = 0; position < 4; position++) {
+        if (slots[position] != NO_SLOT && values[slots[position]] == null) {
+          mask |= 1 << position;
+        }
+      }
+      return mask;
+    }
+
+    private void unbind(int positions, Value[] values) {
+      for (int position = 0; position < 4; position++) {
+        if ((positions & (1 << position)) != 0) {
+          values[slots[position]] = null;
+        }
+      }
+    }
+
+    /**
+     * Binds the slots of the pattern to the statement terms
+     *
+     * @return false if the statement does not match the pattern
+     */
+    private boolean bind(Statement statement, Value[] values) {
+      return bind(SUBJECT, statement.getSubject(), values) &&
+              bind(PREDICATE, statement.getPredicate(), values) &&
+              bind(OBJECT, statement.getObject(), values) &&
+              (!hasContext || bind(CONTEXT, statement.getContext(), values));
+    }
+
+    private boolean bind(int position, Value value, Value[] values) {
+      if (value == null) {
+        return false;
+      }
+      if (slots[position] == NO_SLOT) {
+        return value.equals(constants[position]);
+      }
+      Value current = values[slots[position]];
+      if (current == null) {
+        values[slots[position]] = value;
+        return true;
+      }
+      return value.equals(current);
+    }
+
+    private Statement instantiate(Value[] values, ValueFactory valueFactory) {
+      return hasContext
+              ? valueFactory.createStatement((Resource) get(SUBJECT, values), (IRI) get(PREDICATE, values), get(OBJECT, values), (Resource) get(CONTEXT, values))
+              : valueFactory.createStatement((Resource) get(SUBJECT, values), (IRI) get(PREDICATE, values), get(OBJECT, values));
+    }
+  }
+}
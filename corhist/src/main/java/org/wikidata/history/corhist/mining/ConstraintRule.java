@@ -1,22 +1,20 @@
 package org.wikidata.history.corhist.mining;
 
-import org.eclipse.rdf4j.query.BindingSet;
 import org.eclipse.rdf4j.query.algebra.StatementPattern;
 
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
-import java.util.stream.Stream;
 
 public final class ConstraintRule implements Comparable<ConstraintRule> {
 
   private Set<StatementPattern> head;
   private StatementPattern violationBody;
   private List<StatementPattern> contextBody;
-  private List<BindingSet> bodyBindings;
-  private List<BindingSet> fullBindings;
+  private BindingTable bodyBindings;
+  private BindingTable fullBindings;
 
-  ConstraintRule(Set<StatementPattern> head, StatementPattern violationBody, List<StatementPattern> contextBody, List<BindingSet> bodyBindings, List<BindingSet> fullBindings) {
+  ConstraintRule(Set<StatementPattern> head, StatementPattern violationBody, List<StatementPattern> contextBody, BindingTable bodyBindings, BindingTable fullBindings) {
     this.head = head;
     this.violationBody = violationBody;
     this.contextBody = contextBody;
@@ -24,7 +22,7 @@ public final class ConstraintRule implements Comparable<ConstraintRule> {
     this.fullBindings = fullBindings;
   }
 
-  ConstraintRule(Set<StatementPattern> head, StatementPattern violationBody, List<BindingSet> bodyBindings, List<BindingSet> fullBindings) {
+  ConstraintRule(Set<StatementPattern> head, StatementPattern violationBody, BindingTable bodyBindings, BindingTable fullBindings) {
     this(head, violationBody, Collections.emptyList(), bodyBindings, fullBindings);
   }
 
@@ -40,12 +38,12 @@ public final class ConstraintRule implements Comparable<ConstraintRule> {
     return contextBody;
   }
 
-  Stream<BindingSet> getBodyBindings() {
-    return bodyBindings.stream();
+  BindingTable getBodyBindings() {
+    return bodyBindings;
   }
 
-  Stream<BindingSet> getFullBindings() {
-    return fullBindings.stream();
+  BindingTable getFullBindings() {
+    return fullBindings;
   }
 
   public int getSupport() {
@@ -19,10 +19,10 @@ class ConstraintRuleInclusion {
 
     QueryBindingSet additionalBindingsForB = new QueryBindingSet();
 
-    //Violation body
+    //Violation body then each pattern of the b context should be matched by a pattern of the a context
     return isStatementPatternMorePrecise(a.getViolationBody(), b.getViolationBody(), additionalBindingsForB) &&
-            a.getContextBody().stream().allMatch(aContextStatement ->
-                    b.getContextBody().stream().anyMatch(bContextStatement ->
+            b.getContextBody().stream().allMatch(bContextStatement ->
+                    a.getContextBody().stream().anyMatch(aContextStatement ->
                             isStatementPatternMorePrecise(aContextStatement, bContextStatement, additionalBindingsForB)
                     )
             ) &&
@@ -30,10 +30,16 @@ class ConstraintRuleInclusion {
   }
 
   private static boolean isStatementPatternMorePrecise(StatementPattern a, StatementPattern b, QueryBindingSet additionalBindingsForB) {
-    return isVarSelectionMorePrecise(a.getSubjectVar(), b.getSubjectVar(), additionalBindingsForB) &&
-            isVarSelectionMorePrecise(a.getPredicateVar(), b.getPredicateVar(), additionalBindingsForB) &&
-            isVarSelectionMorePrecise(a.getObjectVar(), b.getObjectVar(), additionalBindingsForB) &&
-            isVarSelectionMorePrecise(a.getContextVar(), b.getContextVar(), additionalBindingsForB);
+    //We only keep the new bindings if the patterns match
+    QueryBindingSet newBindings = new QueryBindingSet(additionalBindingsForB);
+    if (isVarSelectionMorePrecise(a.getSubjectVar(), b.getSubjectVar(), newBindings) &&
+            isVarSelectionMorePrecise(a.getPredicateVar(), b.getPredicateVar(), newBindings) &&
+            isVarSelectionMorePrecise(a.getObjectVar(), b.getObjectVar(), newBindings) &&
+            isVarSelectionMorePrecise(a.getContextVar(), b.getContextVar(), newBindings)) {
+      additionalBindingsForB.addAll(newBindings);
+      return true;
+    }
+    return false;
   }
 
   private static boolean isVarSelectionMorePrecise(Var a, Var b, QueryBindingSet additionalBindingsForB) {
@@ -44,7 +50,7 @@ class ConstraintRuleInclusion {
         return a.equals(b);
       } else {
         if (additionalBindingsForB.hasBinding(b.getName())) {
-          return a.getValue().equals(additionalBindingsForB.getBinding(b.getName()));
+          return a.getValue().equals(additionalBindingsForB.getValue(b.getName()));
         } else {
           additionalBindingsForB.addBinding(b.getName(), a.getValue());
           return true;
@@ -1,7 +1,7 @@
 package org.wikidata.history.corhist.mining;
 
-import org.eclipse.rdf4j.model.Statement;
-import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.*;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
 import org.eclipse.rdf4j.repository.RepositoryConnection;
 import org.wikidata.history.corhist.dataset.ConstraintViolationCorrection;
 import org.wikidata.history.sparql.Vocabulary;
@@ -12,60 +12,133 @@ class Evaluator {
 
   private final ValueFactory valueFactory;
   private final RepositoryConnection repositoryConnection;
+  private final boolean useSnapshots;
+  private List<ConstraintViolationCorrection> snapshotCorrections;
+  private int snapshotDepth;
+  private Model snapshot;
 
   Evaluator(RepositoryConnection repositoryConnection) {
+    this(repositoryConnection, false);
+  }
+
+  /**
+   * @param useSnapshots if the neighbourhoods of the evaluated corrections should be loaded in memory before evaluating the rules.
+   *                     The snapshot is kept while the evaluator is called with the same corrections list.
+   */
+  Evaluator(RepositoryConnection repositoryConnection, boolean useSnapshots) {
     valueFactory = repositoryConnection.getValueFactory();
     this.repositoryConnection = repositoryConnection;
+    this.useSnapshots = useSnapshots;
   }
 
   Evaluation evaluate(List<ConstraintRule> rules, List<ConstraintViolationCorrection> corrections) {
+    return evaluate(rules, corrections, new float[]{Float.NEGATIVE_INFINITY})[0];
+  }
+
+  /**
+   * Evaluates for each threshold the rules with a std confidence at least equal to it.
+   * <p>
+   * The rules are sorted by decreasing std confidence so, for a given threshold, the rule applied to a correction is
+   * the first matching rule of the full list if its std confidence passes the threshold, and no rule otherwise.
+   * Each correction is hence matched only once whatever the number of thresholds.
+   */
+  Evaluation[] evaluate(List<ConstraintRule> rules, List<ConstraintViolationCorrection> corrections, float[] thresholds) {
     if (corrections.isEmpty()) {
       throw new IllegalArgumentException("The test set should not be empty");
     }
 
     rules.sort(Comparator.reverseOrder());
+    Model model = useSnapshots ? getSnapshot(corrections, getContextDepth(rules)) : null;
+    CompiledRule[] compiledRules = rules.stream().map(CompiledRule::compile).toArray(CompiledRule[]::new);
 
-    int goodCorrections = 0;
-    int badCorrections = 0;
-    int someCorrectionFound = 0;
-    int noCorrectionFound = 0;
+    //Std confidence of the first matching rule for each correction (NaN if none) and if its correction is the expected one
+    float[] firstMatchConfidences = new float[corrections.size()];
+    boolean[] isFirstMatchGood = new boolean[corrections.size()];
+    Arrays.fill(firstMatchConfidences, Float.NaN);
+    int i = 0;
     for (ConstraintViolationCorrection correction : corrections) {
-      Set<Statement> possibleCorrection = buildPossibleCorrection(rules, correction).orElseGet(Collections::emptySet);
-      if (possibleCorrection.isEmpty()) {
-        noCorrectionFound++;
-      } else {
-        someCorrectionFound++;
-        if (possibleCorrection.equals(correction.getCorrection())) {
-          goodCorrections++;
-        } else {
-          //System.out.println("Expected:" + correction.getCorrection());
-          //System.out.println("Actual:" + possibleCorrection);
-          badCorrections++;
+      Statement violation = valueFactory.createStatement(
+              correction.getTargetTriple().getSubject(),
+              correction.getConstraint().getId(),
+              correction.getTargetTriple().getObject(),
+              Vocabulary.toGlobalState(Vocabulary.previousRevision(correction.getCorrectionRevision()))
+      );
+      for (int r = 0; r < compiledRules.length; r++) {
+        Optional<Set<Statement>> possibleCorrection = (model == null)
+                ? compiledRules[r].apply(violation, repositoryConnection, valueFactory)
+                : compiledRules[r].apply(violation, model, valueFactory);
+        if (possibleCorrection.isPresent()) {
+          firstMatchConfidences[i] = rules.get(r).getStdConfidence();
+          isFirstMatchGood[i] = possibleCorrection.get().equals(correction.getCorrection());
+          break;
         }
       }
+      i++;
     }
 
-    assert goodCorrections + badCorrections == someCorrectionFound;
-    assert someCorrectionFound + noCorrectionFound == corrections.size();
+    Evaluation[] evaluations = new Evaluation[thresholds.length];
+    for (int t = 0; t < thresholds.length; t++) {
+      int goodCorrections = 0;
+      int someCorrectionFound = 0;
+      for (int c = 0; c < firstMatchConfidences.length; c++) {
+        if (firstMatchConfidences[c] >= thresholds[t]) { //false for NaN
+          someCorrectionFound++;
+          if (isFirstMatchGood[c]) {
+            goodCorrections++;
+          }
+        }
+      }
+      evaluations[t] = new Evaluation(
+              (someCorrectionFound == 0) ? 1 : ((float) goodCorrections) / someCorrectionFound,
+              ((float) someCorrectionFound) / corrections.size(),
+              corrections.size()
+      );
+    }
+    return evaluations;
+  }
 
-    return new Evaluation(
-            (someCorrectionFound == 0) ? 1 : ((float) goodCorrections) / someCorrectionFound,
-            ((float) someCorrectionFound) / corrections.size(),
-            corrections.size()
-    );
+  /**
+   * The context patterns are chained from the violation variables so a rule needs at most as many hops as it has context patterns
+   */
+  private static int getContextDepth(List<ConstraintRule> rules) {
+    return rules.stream().mapToInt(rule -> rule.getContextBody().size()).max().orElse(0);
   }
 
-  private Optional<Set<Statement>> buildPossibleCorrection(List<ConstraintRule> rules, ConstraintViolationCorrection correction) {
-    return rules.stream().flatMap(rule ->
-            PatternEvaluator.evaluate(rule.getViolationBody(), valueFactory.createStatement(
-                    correction.getTargetTriple().getSubject(),
-                    correction.getConstraint().getId(),
-                    correction.getTargetTriple().getObject(),
-                    Vocabulary.toGlobalState(Vocabulary.previousRevision(correction.getCorrectionRevision()))
-            )).flatMap(violationBindings ->
-                    PatternEvaluator.evaluate(rule.getContextBody(), violationBindings, repositoryConnection)
-                            .map(bindings -> PatternEvaluator.instantiate(rule.getHead(), bindings, valueFactory))
-            )
-    ).findAny();
+  private Model getSnapshot(List<ConstraintViolationCorrection> corrections, int depth) {
+    if (snapshot == null || snapshotCorrections != corrections || snapshotDepth < depth) {
+      snapshot = buildSnapshot(corrections, depth);
+      snapshotCorrections = corrections;
+      snapshotDepth = depth;
+    }
+    return snapshot;
+  }
+
+  /**
+   * Loads the statements reachable in depth hops from the subject and the object of each correction target
+   * in the global state before the correction
+   */
+  private Model buildSnapshot(List<ConstraintViolationCorrection> corrections, int depth) {
+    Model model = new LinkedHashModel();
+    for (ConstraintViolationCorrection correction : corrections) {
+      Resource graph = Vocabulary.toGlobalState(Vocabulary.previousRevision(correction.getCorrectionRevision()));
+      Set<Value> visited = new HashSet<>();
+      Set<Value> frontier = new HashSet<>();
+      frontier.add(correction.getTargetTriple().getSubject());
+      frontier.add(correction.getTargetTriple().getObject());
+      for (int hop = 0; hop < depth && !frontier.isEmpty(); hop++) {
+        visited.addAll(frontier);
+        Set<Value> nextFrontier = new HashSet<>();
+        for (Value value : frontier) {
+          PatternEvaluator.evaluate(value, null, null, graph, repositoryConnection).forEach(statement -> {
+            model.add(statement);
+            if (!visited.contains(statement.getObject())) {
+              nextFrontier.add(statement.getObject());
+            }
+          });
+        }
+        frontier = nextFrontier;
+      }
+    }
+    return model;
   }
 }
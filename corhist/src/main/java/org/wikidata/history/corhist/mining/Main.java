@@ -13,15 +13,20 @@ import org.wikidata.history.corhist.dataset.Constraint;
 import org.wikidata.history.corhist.dataset.ConstraintViolationCorrection;
 import org.wikidata.history.corhist.dataset.ConstraintViolationCorrectionLookup;
 import org.wikidata.history.corhist.dataset.ConstraintsListBuilder;
+import org.wikidata.history.corhist.dataset.CorrectionsFormat;
+import org.wikidata.history.corhist.dataset.CorrectionsWriter;
+import org.wikidata.history.corhist.dataset.MappedCorrectionsFile;
+import org.wikidata.history.corhist.dataset.PropertyStatistics;
 import org.wikidata.history.sparql.HistoryRepository;
 import org.wikidata.history.sparql.Vocabulary;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 public class Main {
@@ -35,6 +40,12 @@ public class Main {
     Options options = new Options();
     options.addOption("c", "constraints", true, "Constraints to  target");
     options.addOption("l", "limit", true, "Number of corrections to get per correction seed pattern");
+    options.addOption("t", "threads", true, "Number of threads used to look for corrections");
+    options.addOption("s", "statistics", true, "File used to cache the property statistics between runs");
+    options.addOption("f", "format", true, "Format of the new corrections files (tsv or bin)");
+    options.addOption("m", "mining-threads", true, "Number of threads used to refine the mined rules");
+    options.addOption("d", "depth", true, "Maximal number of context patterns added to the mined rules");
+    options.addOption("b", "beam-width", true, "Number of rules kept at each refinement level");
     CommandLineParser parser = new DefaultParser();
     CommandLine line = parser.parse(options, args);
 
@@ -42,14 +53,23 @@ public class Main {
     String filter = line.getOptionValue("constraints", "*");
     String limitStr = line.getOptionValue("limit", "");
     OptionalLong limit = limitStr.isEmpty() ? OptionalLong.empty() : OptionalLong.of(Long.parseLong(limitStr));
+    int threads = Integer.parseInt(line.getOptionValue("threads", "1"));
+    String statisticsFile = line.getOptionValue("statistics", "");
+    CorrectionsFormat correctionsFormat = CorrectionsFormat.fromName(line.getOptionValue("format", "tsv"));
+    int miningThreads = Integer.parseInt(line.getOptionValue("mining-threads", "1"));
+    ForkJoinPool miningPool = miningThreads > 1 ? new ForkJoinPool(miningThreads) : null;
+    int depth = Integer.parseInt(line.getOptionValue("depth", Integer.toString(Miner.DEFAULT_MAX_DEPTH)));
+    int beamWidth = Integer.parseInt(line.getOptionValue("beam-width", Integer.toString(Miner.DEFAULT_BEAM_WIDTH)));
     String qualifiedFilter = filter + (limit.isPresent() ? "-" + limit.getAsLong() : "");
 
     Path statsPath = Paths.get("constraint-stats-" + qualifiedFilter + ".tsv");
     Set<String> alreadyDone = alreadyDoneConstraints(statsPath);
     try (
             HistoryRepository repository = new HistoryRepository(index);
+            PropertyStatistics statistics = statisticsFile.isEmpty() ? new PropertyStatistics() : new PropertyStatistics(Paths.get(statisticsFile), index);
+            ConstraintViolationCorrectionLookup constraintViolationCorrectionLookup = new ConstraintViolationCorrectionLookup(filter, repository, limit, threads, statistics);
             BufferedWriter statsWriter = Files.newBufferedWriter(statsPath, CREATE_AND_APPEND);
-            ObjectOutputStream serializedRulesOutputStream = new ObjectOutputStream(Files.newOutputStream(Paths.get("constraint-rules-" + qualifiedFilter + ".ser"), CREATE_AND_APPEND));
+            RuleStoreWriter rulesStoreWriter = new RuleStoreWriter(Paths.get("constraint-rules-" + qualifiedFilter + ".rules"));
             BufferedWriter rulesTextWriter = Files.newBufferedWriter(Paths.get("constraint-rules-" + qualifiedFilter + ".txt"), CREATE_AND_APPEND)
     ) {
       if (alreadyDone.isEmpty()) {
@@ -76,7 +96,6 @@ public class Main {
 
       //Read constraints
       Collection<Constraint> constraints = new ConstraintsListBuilder().build();
-      ConstraintViolationCorrectionLookup constraintViolationCorrectionLookup = new ConstraintViolationCorrectionLookup(filter, repository, limit);
       DeletionBaseline deletionBaselineComputer = new DeletionBaseline(repository.getValueFactory());
       AdditionBaseline additionBaselineComputer = new AdditionBaseline(repository.getValueFactory());
 
@@ -99,23 +118,25 @@ public class Main {
           Path correctionsFile = correctionsDir.resolve(constraint.getId().getLocalName());
           TrainAndTestSets sets = Files.exists(correctionsFile)
                   ? readCorrectionsFile(correctionsFile, repository.getValueFactory(), constraint)
-                  : findAndSaveCorrections(correctionsFile, constraintViolationCorrectionLookup, constraint);
+                  : findAndSaveCorrections(correctionsFile, correctionsFormat, constraintViolationCorrectionLookup, constraint);
 
           long currentViolationsCount = constraintViolationCorrectionLookup.countCurrentViolations(constraint);
-          Map<Pair<Long, Long>, Long> correctedViolations = correctionsPerAdditionsDeletions(sets.stream());
+          Map<Pair<Long, Long>, Long> correctedViolations = sets.getCorrectedViolations();
           long oneAddition = correctedViolations.getOrDefault(Pair.of(1L, 0L), 0L);
           long oneDeletion = correctedViolations.getOrDefault(Pair.of(0L, 1L), 0L);
           long oneReplacement = correctedViolations.getOrDefault(Pair.of(1L, 1L), 0L);
           long otherCorrections = moreThanTwoChanges(correctedViolations);
-          Evaluation deletionBaseline = deletionBaselineComputer.compute(Stream.concat(sets.trainSet.stream(), sets.testSet.stream()));
-          Evaluation additionBaseline = additionBaselineComputer.compute(Stream.concat(sets.trainSet.stream(), sets.testSet.stream()));
+          Evaluation deletionBaseline = deletionBaselineComputer.compute(sets.stream());
+          Evaluation additionBaseline = additionBaselineComputer.compute(sets.stream());
 
           //Mining and its evaluation
           Evaluation evaluation = DEFAULT_EVALUATION;
           if (!sets.trainSet.isEmpty() && !sets.testSet.isEmpty()) {
-            try (RepositoryConnection connection = repository.getConnection()) {
-              Miner miner = new Miner(connection);
-              Evaluator evaluator = new Evaluator(connection);
+            try (
+                    RepositoryConnection connection = repository.getConnection();
+                    Miner miner = new Miner(repository, miningPool, depth, beamWidth)
+            ) {
+              Evaluator evaluator = new Evaluator(connection, true);
               TuningMiner tuningMiner = new TuningMiner(miner, evaluator);
 
               List<ConstraintRule> rules = tuningMiner.mine(sets.trainSet);
@@ -123,9 +144,13 @@ public class Main {
 
               //Save rules
               rules.sort(Comparator.reverseOrder());
+              try {
+                rulesStoreWriter.write(constraint.getId(), rules);
+              } catch (IOException e) {
+                LOGGER.error(e.getMessage(), e);
+              }
               for (ConstraintRule rule : rules) {
                 try {
-                  serializedRulesOutputStream.writeObject(rule.toSimple());
                   rulesTextWriter.write(
                           rule.getHead().stream().map(Main::toString).collect(Collectors.joining("\t")) + "\t<-\t" +
                                   toString(rule.getViolationBody()) + "\t" +
@@ -169,34 +194,86 @@ public class Main {
           LOGGER.error(e.getMessage(), e);
         }
       });
+    } finally {
+      if (miningPool != null) {
+        miningPool.shutdown();
+      }
     }
   }
 
   private static TrainAndTestSets readCorrectionsFile(Path file, ValueFactory valueFactory, Constraint constraint) throws IOException {
     Map<IRI, Constraint> constraintsMap = Collections.singletonMap(constraint.getId(), constraint);
+    CorrectionsFormat format = CorrectionsFormat.detect(file);
+    if (format == CorrectionsFormat.BINARY) {
+      return readMappedCorrectionsFile(MappedCorrectionsFile.open(file, valueFactory), constraintsMap);
+    }
     TrainAndTestSets set = new TrainAndTestSets();
-    try (Stream<String> lines = Files.lines(file)) {
-      lines.forEach(line -> {
-                try {
-                  ConstraintViolationCorrection correction = ConstraintViolationCorrection.read(line, valueFactory, constraintsMap);
-                  set.add(correction);
-                } catch (IllegalArgumentException e) {
-                  LOGGER.warn(e.getMessage(), e);
-                }
-              }
-      );
+    try (Stream<ConstraintViolationCorrection> corrections = format.read(file, valueFactory, constraintsMap)) {
+      corrections.forEach(set::add);
     }
     return set;
   }
 
-  private static TrainAndTestSets findAndSaveCorrections(Path file, ConstraintViolationCorrectionLookup constraintViolationCorrectionLookup, Constraint constraint) throws IOException {
+  /**
+   * Keeps the corrections in the mapped file: they are only materialized when the sets are iterated
+   * and the additions/deletions statistics are computed directly on the records.
+   */
+  private static TrainAndTestSets readMappedCorrectionsFile(MappedCorrectionsFile file, Map<IRI, Constraint> constraints) {
+    OptionalInt additionId = file.getTermId(Vocabulary.HISTORY_ADDITION);
+    OptionalInt deletionId = file.getTermId(Vocabulary.HISTORY_DELETION);
+    Set<Integer> constraintIds = new HashSet<>();
+    for (IRI constraint : constraints.keySet()) {
+      file.getTermId(constraint).ifPresent(constraintIds::add);
+    }
+    Map<Pair<Long, Long>, Long> correctedViolations = new HashMap<>();
+    IntStream.Builder trainRecords = IntStream.builder();
+    IntStream.Builder testRecords = IntStream.builder();
+    int[] recordIndex = new int[]{0};
+    file.forEachRecord(record -> {
+      //The records of other constraints are skipped like when the file is streamed
+      if (!constraintIds.contains(record.getConstraintId())) {
+        recordIndex[0]++;
+        return;
+      }
+      long add = 0;
+      long del = 0;
+      for (int i = 0; i < record.getCorrectionSize(); i++) {
+        int context = record.getCorrectionContextId(i);
+        if (additionId.isPresent() && additionId.getAsInt() == context) {
+          add++;
+        } else if (deletionId.isPresent() && deletionId.getAsInt() == context) {
+          del++;
+        }
+      }
+      if (add + del > 0) {
+        Pair<Long, Long> key = Pair.of(add, del);
+        correctedViolations.put(key, correctedViolations.getOrDefault(key, 0L) + 1);
+      }
+
+      if (TrainAndTestSets.isDrawnForTestSet()) {
+        testRecords.add(recordIndex[0]);
+      } else {
+        trainRecords.add(recordIndex[0]);
+      }
+      recordIndex[0]++;
+    });
+    return new TrainAndTestSets(
+            file.getCorrections(trainRecords.build().toArray(), constraints),
+            file.getCorrections(testRecords.build().toArray(), constraints),
+            correctedViolations
+    );
+  }
+
+  private static TrainAndTestSets findAndSaveCorrections(Path file, CorrectionsFormat format, ConstraintViolationCorrectionLookup constraintViolationCorrectionLookup, Constraint constraint) throws IOException {
     TrainAndTestSets set = new TrainAndTestSets();
-    constraintViolationCorrectionLookup.findCorrections(constraint).forEach(set::add);
+    try (Stream<ConstraintViolationCorrection> corrections = constraintViolationCorrectionLookup.findCorrections(constraint)) {
+      corrections.forEach(set::add);
+    }
 
-    try (BufferedWriter correctionsWriter = Files.newBufferedWriter(file)) {
+    try (CorrectionsWriter correctionsWriter = format.newWriter(file)) {
       set.stream().forEach(correction -> {
         try {
-          correction.write(correctionsWriter);
+          correctionsWriter.write(correction);
         } catch (IOException e) {
           LOGGER.error(e.getMessage(), e);
         }
@@ -279,11 +356,33 @@ public class Main {
   }
 
   private static final class TrainAndTestSets {
-    private final List<ConstraintViolationCorrection> trainSet = new ArrayList<>();
-    private final List<ConstraintViolationCorrection> testSet = new ArrayList<>();
+    private final List<ConstraintViolationCorrection> trainSet;
+    private final List<ConstraintViolationCorrection> testSet;
+    private Map<Pair<Long, Long>, Long> correctedViolations;
+
+    private TrainAndTestSets() {
+      this(new ArrayList<>(), new ArrayList<>(), null);
+    }
+
+    private TrainAndTestSets(List<ConstraintViolationCorrection> trainSet, List<ConstraintViolationCorrection> testSet, Map<Pair<Long, Long>, Long> correctedViolations) {
+      this.trainSet = trainSet;
+      this.testSet = testSet;
+      this.correctedViolations = correctedViolations;
+    }
+
+    private Map<Pair<Long, Long>, Long> getCorrectedViolations() {
+      if (correctedViolations == null) {
+        correctedViolations = correctionsPerAdditionsDeletions(stream());
+      }
+      return correctedViolations;
+    }
+
+    private static boolean isDrawnForTestSet() {
+      return Math.random() >= TRAIN_SET_RATIO;
+    }
 
     private void add(ConstraintViolationCorrection correction) {
-      if (Math.random() >= TRAIN_SET_RATIO) {
+      if (isDrawnForTestSet()) {
         testSet.add(correction);
       } else {
         trainSet.add(correction);
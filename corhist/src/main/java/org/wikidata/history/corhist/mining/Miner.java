@@ -3,68 +3,210 @@ package org.wikidata.history.corhist.mining;
 import org.apache.commons.lang3.tuple.Pair;
 import org.eclipse.rdf4j.model.Statement;
 import org.eclipse.rdf4j.model.Value;
-import org.eclipse.rdf4j.query.BindingSet;
 import org.eclipse.rdf4j.query.algebra.StatementPattern;
 import org.eclipse.rdf4j.query.algebra.Var;
 import org.eclipse.rdf4j.query.algebra.helpers.TupleExprs;
-import org.eclipse.rdf4j.query.impl.ListBindingSet;
+import org.eclipse.rdf4j.repository.Repository;
 import org.eclipse.rdf4j.repository.RepositoryConnection;
 import org.wikidata.history.corhist.dataset.ConstraintViolationCorrection;
 import org.wikidata.history.sparql.Vocabulary;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-class Miner {
+class Miner implements AutoCloseable {
 
   private static final int MIN_SUPPORT = 10;
   static final float MIN_STD_CONFIDENCE = 0.5f;
   private static final float IMPROVEMENT_STEP = 0.05f;
 
+  static final int DEFAULT_MAX_DEPTH = 1;
+  static final int DEFAULT_BEAM_WIDTH = Integer.MAX_VALUE;
+
   private static final Var S = new Var("s");
   private static final Var P = new Var("p");
   private static final Var O = new Var("o");
-  private static final Var V = new Var("v");
   private static final Var G = new Var("g");
 
-  private static final List<String> SG = Arrays.asList("s", "g");
-  private static final List<String> SOG = Arrays.asList("s", "o", "g");
-
-  private final RepositoryConnection repositoryConnection;
+  private final Repository repository;
+  private final ForkJoinPool workerPool;
+  private final ThreadLocal<RepositoryConnection> connections;
+  private final Queue<RepositoryConnection> openedConnections = new ConcurrentLinkedQueue<>();
+  private final TermDictionary dictionary = new TermDictionary();
+  private final int maxDepth;
+  private final int beamWidth;
+  /**
+   * Columns of the binding tables: s, o, g then the variable introduced by each refinement level
+   */
+  private final List<String> variables;
 
+  /**
+   * Sequential miner using the given connection
+   */
   Miner(RepositoryConnection repositoryConnection) {
-    this.repositoryConnection = repositoryConnection;
+    this(null, null, DEFAULT_MAX_DEPTH, DEFAULT_BEAM_WIDTH, () -> repositoryConnection);
+  }
+
+  /**
+   * Miner refining the rules on the given pool, each worker thread getting its own connection.
+   * If the pool is null the refinement is done sequentially in the calling thread.
+   *
+   * @param maxDepth  maximal number of context patterns added to the basic rules
+   * @param beamWidth number of rules kept per basic rule at each refinement level
+   */
+  Miner(Repository repository, ForkJoinPool workerPool, int maxDepth, int beamWidth) {
+    this(repository, workerPool, maxDepth, beamWidth, null);
+  }
+
+  private Miner(Repository repository, ForkJoinPool workerPool, int maxDepth, int beamWidth, Supplier<RepositoryConnection> connection) {
+    if (maxDepth < 0 || beamWidth < 1) {
+      throw new IllegalArgumentException("The depth should be positive and the beam width at least 1");
+    }
+    this.repository = repository;
+    this.workerPool = workerPool;
+    this.connections = ThreadLocal.withInitial(connection == null ? this::openConnection : connection);
+    this.maxDepth = maxDepth;
+    this.beamWidth = beamWidth;
+    variables = new ArrayList<>(Arrays.asList(S.getName(), O.getName(), G.getName()));
+    for (int level = 1; level <= maxDepth; level++) {
+      variables.add(levelVar(level).getName());
+    }
   }
 
   List<ConstraintRule> mine(List<ConstraintViolationCorrection> corrections) {
-    return possibleBasicRules(corrections)
-            .flatMap(this::refineWithGraph)
-            .distinct()
+    List<ConstraintRule> basicRules = possibleBasicRules(corrections).collect(Collectors.toList());
+    return runOnWorkers(() -> {
+      //Each basic rule has its own beam, the basic rule is kept after its refinements
+      List<List<ConstraintRule>> beams = basicRules.stream().map(Collections::singletonList).collect(Collectors.toList());
+      List<List<ConstraintRule>> keptRefinements = basicRules.stream().map(rule -> new ArrayList<ConstraintRule>()).collect(Collectors.toList());
+      Set<List<Object>> seenRules = ConcurrentHashMap.newKeySet();
+      basicRules.forEach(rule -> seenRules.add(ruleKey(rule)));
+      for (int level = 1; level <= maxDepth; level++) {
+        beams = refineBeams(beams, keptRefinements, levelVar(level), seenRules);
+      }
+      List<ConstraintRule> rules = new ArrayList<>();
+      for (int i = 0; i < basicRules.size(); i++) {
+        rules.addAll(keptRefinements.get(i));
+        rules.add(basicRules.get(i));
+      }
+      return rules;
+    });
+  }
+
+  /**
+   * Does one refinement level: the candidate patterns of all the beams rules are spread on the workers
+   * then for each beam the new rules not subsumed by a rule kept at an earlier level are selected.
+   * If there are more than the beam width the ones with the best std confidence are kept.
+   * The kept rules stay in the order they have been generated.
+   */
+  private List<List<ConstraintRule>> refineBeams(List<List<ConstraintRule>> beams, List<List<ConstraintRule>> keptRefinements, Var newVar, Set<List<Object>> seenRules) {
+    List<Pair<Integer, Pair<ConstraintRule, StatementPattern>>> refinements = new ArrayList<>();
+    for (int i = 0; i < beams.size(); i++) {
+      for (ConstraintRule rule : beams.get(i)) {
+        //The std confidence is at most 1 so the rule could not be improved enough
+        if (rule.getStdConfidence() + IMPROVEMENT_STEP < 1) {
+          for (StatementPattern pattern : candidatePatterns(rule, newVar)) {
+            refinements.add(Pair.of(i, Pair.of(rule, pattern)));
+          }
+        }
+      }
+    }
+    List<Pair<Integer, ConstraintRule>> newRules = parallelize(refinements)
+            .flatMap(refinement -> refineWithGraph(refinement.getRight().getLeft(), refinement.getRight().getRight())
+                    .map(rule -> Pair.of(refinement.getLeft(), rule))
+            )
+            .filter(rule -> seenRules.add(ruleKey(rule.getRight())))
             .collect(Collectors.toList());
+
+    List<List<ConstraintRule>> newBeams = beams.stream().map(beam -> new ArrayList<ConstraintRule>()).collect(Collectors.toList());
+    for (Pair<Integer, ConstraintRule> newRule : newRules) {
+      newBeams.get(newRule.getLeft()).add(newRule.getRight());
+    }
+    for (int i = 0; i < newBeams.size(); i++) {
+      List<ConstraintRule> kept = keptRefinements.get(i);
+      List<ConstraintRule> beam = newBeams.get(i).stream()
+              .filter(rule -> kept.stream().noneMatch(other -> isSubsumedBy(rule, other)))
+              .collect(Collectors.toList());
+      if (beam.size() > beamWidth) {
+        Set<ConstraintRule> best = Collections.newSetFromMap(new IdentityHashMap<>());
+        beam.stream().sorted(Comparator.reverseOrder()).limit(beamWidth).forEach(best::add);
+        beam.removeIf(rule -> !best.contains(rule));
+      }
+      kept.addAll(beam);
+      newBeams.set(i, beam);
+    }
+    return newBeams;
+  }
+
+  /**
+   * A rule is subsumed by a more general one if it does not improve enough on it
+   */
+  private static boolean isSubsumedBy(ConstraintRule rule, ConstraintRule other) {
+    return rule.getStdConfidence() <= other.getStdConfidence() + IMPROVEMENT_STEP &&
+            ConstraintRuleInclusion.isMorePrecise(rule, other);
+  }
+
+  /**
+   * Key identifying the rules equal up to the order of their context patterns and the names of the variables they introduce
+   */
+  private static List<Object> ruleKey(ConstraintRule rule) {
+    return Arrays.asList(rule.getHead(), rule.getViolationBody(), canonicalContextBody(rule.getContextBody()));
+  }
+
+  /**
+   * Each context pattern is (?x p o ?g) or (?x p ?v ?g) with ?v introduced by the pattern
+   * so the context body is a forest rooted on the variables of the violation body that is written with sorted children.
+   */
+  private static String canonicalContextBody(List<StatementPattern> contextBody) {
+    Map<String, List<StatementPattern>> patternsBySubject = contextBody.stream()
+            .collect(Collectors.groupingBy(pattern -> pattern.getSubjectVar().getName()));
+    Set<String> introducedVariables = contextBody.stream()
+            .filter(pattern -> !pattern.getObjectVar().isConstant())
+            .map(pattern -> pattern.getObjectVar().getName())
+            .collect(Collectors.toSet());
+    return patternsBySubject.keySet().stream()
+            .filter(subject -> !introducedVariables.contains(subject))
+            .sorted()
+            .map(subject -> subject + canonicalPatterns(subject, patternsBySubject))
+            .collect(Collectors.joining(" "));
+  }
+
+  private static String canonicalPatterns(String subject, Map<String, List<StatementPattern>> patternsBySubject) {
+    return patternsBySubject.getOrDefault(subject, Collections.emptyList()).stream().map(pattern -> {
+      Var object = pattern.getObjectVar();
+      return pattern.getPredicateVar().getValue() + " " +
+              (object.isConstant() ? object.getValue().toString() : canonicalPatterns(object.getName(), patternsBySubject));
+    }).sorted().collect(Collectors.joining(" ; ", "[", "]"));
+  }
+
+  private static Var levelVar(int level) {
+    return new Var(level == 1 ? "v" : "v" + level);
   }
 
   private Stream<ConstraintRule> possibleBasicRules(List<ConstraintViolationCorrection> corrections) {
-    Map<StatementPattern, List<BindingSet>> violationPatterns = new HashMap<>();
-    Map<Pair<StatementPattern, Set<StatementPattern>>, List<BindingSet>> violationAndCorrectionPatterns = new HashMap<>();
+    Map<StatementPattern, BindingTable> violationPatterns = new HashMap<>();
+    Map<Pair<StatementPattern, Set<StatementPattern>>, BindingTable> violationAndCorrectionPatterns = new HashMap<>();
 
     corrections.forEach(correction -> {
       //We first build a pattern for the violation and we expand it for the correction
       createViolationPattern(correction).forEach(violationPatternAndBinding -> {
         StatementPattern violationPattern = violationPatternAndBinding.getLeft();
-        BindingSet bindingSet = violationPatternAndBinding.getRight();
-        Set<StatementPattern> correctionPatterns = buildCorrectionPattern(
-                violationPatternAndBinding.getRight(),
-                correction.getCorrection()
-        );
+        int[] row = violationPatternAndBinding.getRight();
+        Set<StatementPattern> correctionPatterns = buildCorrectionPattern(row, correction.getCorrection());
         violationPatterns.computeIfAbsent(
                 violationPattern,
-                (k) -> new ArrayList<>()
-        ).add(bindingSet);
+                (k) -> new BindingTable(variables)
+        ).addRow(row);
         violationAndCorrectionPatterns.computeIfAbsent(
                 Pair.of(violationPattern, correctionPatterns),
-                (k) -> new ArrayList<>()
-        ).add(bindingSet);
+                (k) -> new BindingTable(variables)
+        ).addRow(row);
       });
     });
 
@@ -72,45 +214,57 @@ class Miner {
     return violationAndCorrectionPatterns.entrySet().stream().map(violationAndCorrectionPatternAndBindings -> {
       StatementPattern violationPattern = violationAndCorrectionPatternAndBindings.getKey().getLeft();
       Set<StatementPattern> correctionPatterns = violationAndCorrectionPatternAndBindings.getKey().getRight();
-      List<BindingSet> bodyBindings = violationPatterns.get(violationPattern);
-      List<BindingSet> fullBindings = violationAndCorrectionPatternAndBindings.getValue();
+      BindingTable bodyBindings = violationPatterns.get(violationPattern);
+      BindingTable fullBindings = violationAndCorrectionPatternAndBindings.getValue();
       return new ConstraintRule(correctionPatterns, violationPattern, bodyBindings, fullBindings);
     }).filter(this::passThresholds);
   }
 
 
-  private Stream<Pair<StatementPattern, BindingSet>> createViolationPattern(ConstraintViolationCorrection correction) {
-    Value subject = correction.getTargetTriple().getSubject();
+  private Stream<Pair<StatementPattern, int[]>> createViolationPattern(ConstraintViolationCorrection correction) {
+    int subject = dictionary.intern(correction.getTargetTriple().getSubject());
     Var predicate = TupleExprs.createConstVar(correction.getConstraint().getId());
-    Value object = correction.getTargetTriple().getObject();
-    Value graph = Vocabulary.toGlobalState(Vocabulary.previousRevision(correction.getCorrectionRevision())); //TODO: before first correction part
+    int object = dictionary.intern(correction.getTargetTriple().getObject());
+    int graph = dictionary.intern(Vocabulary.toGlobalState(Vocabulary.previousRevision(correction.getCorrectionRevision()))); //TODO: before first correction part
     return Stream.of(
             Pair.of(
                     new StatementPattern(S, predicate, O, G),
-                    new ListBindingSet(SOG, subject, object, graph)
+                    newRow(subject, object, graph)
             ),
             Pair.of(
                     new StatementPattern(S, predicate, TupleExprs.createConstVar(correction.getTargetTriple().getObject()), G),
-                    new ListBindingSet(SG, subject, graph)
+                    newRow(subject, TermDictionary.UNBOUND, graph)
             )
     );
   }
 
-  private Set<StatementPattern> buildCorrectionPattern(BindingSet bindingSet, Set<Statement> statements) {
+  private int[] newRow(int subject, int object, int graph) {
+    int[] row = new int[variables.size()];
+    Arrays.fill(row, TermDictionary.UNBOUND);
+    row[0] = subject;
+    row[1] = object;
+    row[2] = graph;
+    return row;
+  }
+
+  private Set<StatementPattern> buildCorrectionPattern(int[] row, Set<Statement> statements) {
     return statements.stream().map(statement -> {
       //TODO: keep a field constant even if it matches a variable?
-      Var subject = buildBasicVarForValue(statement.getSubject(), bindingSet);
+      Var subject = buildBasicVarForValue(statement.getSubject(), row);
       Var predicate = TupleExprs.createConstVar(statement.getPredicate());
-      Var object = buildBasicVarForValue(statement.getObject(), bindingSet);
+      Var object = buildBasicVarForValue(statement.getObject(), row);
       Var context = TupleExprs.createConstVar(statement.getContext());
       return new StatementPattern(subject, predicate, object, context);
     }).collect(Collectors.toSet());
   }
 
-  private Var buildBasicVarForValue(Value value, BindingSet fromBindingSet) {
-    for (String name : fromBindingSet.getBindingNames()) {
-      if (value.equals(fromBindingSet.getValue(name))) {
-        return new Var(name);
+  private Var buildBasicVarForValue(Value value, int[] row) {
+    int id = dictionary.getId(value);
+    if (id != TermDictionary.UNBOUND) {
+      for (int i = 0; i < row.length; i++) {
+        if (row[i] == id) {
+          return new Var(variables.get(i));
+        }
       }
     }
     return TupleExprs.createConstVar(value);
@@ -120,27 +274,100 @@ class Miner {
     return rule.getSupport() >= MIN_SUPPORT && rule.getStdConfidence() >= MIN_STD_CONFIDENCE;
   }
 
-  private Stream<ConstraintRule> refineWithGraph(ConstraintRule rule) {
-    return Stream.concat(
-            getVariables(rule).flatMap(var -> {
-              if (var.equals(G)) {
-                return Stream.empty();
-              }
-              return rule.getFullBindings()
-                      .flatMap(bindings -> bindings.hasBinding(var.getName()) ? Stream.of(bindings.getValue(var.getName())) : Stream.empty())
-                      .distinct() //TODO: useful
-                      .flatMap(value ->
-                              PatternEvaluator.evaluate(value, null, null, null, repositoryConnection).flatMap(statement -> Stream.of(
-                                      new StatementPattern(var, TupleExprs.createConstVar(statement.getPredicate()), TupleExprs.createConstVar(statement.getObject()), G),
-                                      new StatementPattern(var, TupleExprs.createConstVar(statement.getPredicate()), V, G) //TODO: create var
-                              ))
-                      )
-                      .distinct()
-                      .map(pattern -> ruleWithAdditionalHistoryBody(rule, pattern))
-                      .filter(newRule -> passThresholds(newRule) && newRule.getStdConfidence() > rule.getStdConfidence() + IMPROVEMENT_STEP);
-            }),
-            Stream.of(rule)
-    );
+  /**
+   * Returns the context patterns (?x p o ?g) and (?x p ?newVar ?g) that would make good refinements of the rule.
+   * <p>
+   * The body and full supports of all the candidates are counted with a single scan of the outgoing edges of each
+   * (?x, ?g) value pair, so only the candidates passing the thresholds are later evaluated against the store.
+   */
+  private List<StatementPattern> candidatePatterns(ConstraintRule rule, Var newVar) {
+    return getVariables(rule).filter(var -> !var.equals(G)).flatMap(var -> {
+      Map<Long, long[]> supports = countContextPatternSupports(rule, var.getName());
+      return supports.entrySet().stream()
+              .filter(support -> isPromisingRefinement(rule, support.getValue()[0], support.getValue()[1]))
+              .map(Map.Entry::getKey)
+              .sorted()
+              .map(key -> {
+                Var predicate = TupleExprs.createConstVar(dictionary.getValue(firstId(key)));
+                int object = secondId(key);
+                return object == TermDictionary.UNBOUND
+                        ? new StatementPattern(var, predicate, newVar, G)
+                        : new StatementPattern(var, predicate, TupleExprs.createConstVar(dictionary.getValue(object)), G);
+              });
+    }).collect(Collectors.toList());
+  }
+
+  /**
+   * @return for each (predicate, object) pair, the object being unbound for the (?x p ?newVar ?g) patterns,
+   * the number of body bindings and of full bindings after the join with the pattern
+   */
+  private Map<Long, long[]> countContextPatternSupports(ConstraintRule rule, String variable) {
+    //Number of body and full bindings per (?x, ?g) value pair
+    Map<Long, long[]> multiplicities = new HashMap<>();
+    addMultiplicities(rule.getBodyBindings(), variable, 0, multiplicities);
+    addMultiplicities(rule.getFullBindings(), variable, 1, multiplicities);
+
+    Map<Long, long[]> supports = new ConcurrentHashMap<>();
+    parallelize(multiplicities.entrySet()).forEach(multiplicity -> {
+      Value subject = dictionary.getValue(firstId(multiplicity.getKey()));
+      Value graph = dictionary.getValue(secondId(multiplicity.getKey()));
+      PatternEvaluator.evaluate(subject, null, null, graph, connections.get()).forEach(statement -> {
+        int predicate = dictionary.intern(statement.getPredicate());
+        addSupports(supports, pairKey(predicate, dictionary.intern(statement.getObject())), multiplicity.getValue());
+        addSupports(supports, pairKey(predicate, TermDictionary.UNBOUND), multiplicity.getValue());
+      });
+    });
+    return supports;
+  }
+
+  private static void addMultiplicities(BindingTable bindings, String variable, int position, Map<Long, long[]> multiplicities) {
+    int column = bindings.getColumnIndex(variable);
+    int graphColumn = bindings.getColumnIndex(G.getName());
+    for (int row = 0; row < bindings.size(); row++) {
+      int value = bindings.get(row, column);
+      int graph = bindings.get(row, graphColumn);
+      if (value != TermDictionary.UNBOUND && graph != TermDictionary.UNBOUND) {
+        multiplicities.computeIfAbsent(pairKey(value, graph), k -> new long[2])[position]++;
+      }
+    }
+  }
+
+  private static void addSupports(Map<Long, long[]> supports, long key, long[] multiplicity) {
+    supports.compute(key, (k, support) -> {
+      if (support == null) {
+        support = new long[2];
+      }
+      support[0] += multiplicity[0];
+      support[1] += multiplicity[1];
+      return support;
+    });
+  }
+
+  private static boolean isPromisingRefinement(ConstraintRule rule, long bodySupport, long fullSupport) {
+    if (fullSupport < MIN_SUPPORT) {
+      return false;
+    }
+    float stdConfidence = fullSupport / (float) bodySupport;
+    return stdConfidence >= MIN_STD_CONFIDENCE && stdConfidence > rule.getStdConfidence() + IMPROVEMENT_STEP;
+  }
+
+  private static long pairKey(int first, int second) {
+    return (((long) first) << 32) | (second & 0xFFFFFFFFL);
+  }
+
+  private static int firstId(long key) {
+    return (int) (key >>> 32);
+  }
+
+  private static int secondId(long key) {
+    return (int) key;
+  }
+
+  private Stream<ConstraintRule> refineWithGraph(ConstraintRule rule, StatementPattern pattern) {
+    ConstraintRule newRule = ruleWithAdditionalHistoryBody(rule, pattern);
+    return (passThresholds(newRule) && newRule.getStdConfidence() > rule.getStdConfidence() + IMPROVEMENT_STEP)
+            ? Stream.of(newRule)
+            : Stream.empty();
   }
 
   private Stream<Var> getVariables(ConstraintRule rule) {
@@ -174,8 +401,8 @@ class Miner {
   private ConstraintRule ruleWithAdditionalHistoryBody(ConstraintRule rule, StatementPattern pattern) {
     return new ConstraintRule(
             rule.getHead(), rule.getViolationBody(), concat(rule.getContextBody(), pattern),
-            rule.getBodyBindings().flatMap(bindings -> PatternEvaluator.evaluate(pattern, bindings, repositoryConnection)).collect(Collectors.toList()),
-            rule.getFullBindings().flatMap(bindings -> PatternEvaluator.evaluate(pattern, bindings, repositoryConnection)).collect(Collectors.toList())
+            PatternEvaluator.evaluate(pattern, rule.getBodyBindings(), dictionary, connections.get()),
+            PatternEvaluator.evaluate(pattern, rule.getFullBindings(), dictionary, connections.get())
     );
   }
 
@@ -185,4 +412,43 @@ class Miner {
     return result;
   }
 
+  private <T> Stream<T> parallelize(Collection<T> elements) {
+    return workerPool == null ? elements.stream() : elements.parallelStream();
+  }
+
+  /**
+   * Runs the task on the worker pool so that the parallel streams it creates are executed by the pool threads.
+   * A failure of the task is rethrown in the calling thread.
+   */
+  private <T> List<T> runOnWorkers(Supplier<List<T>> task) {
+    if (workerPool == null) {
+      return task.get();
+    }
+    try {
+      return workerPool.submit(task::get).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private RepositoryConnection openConnection() {
+    RepositoryConnection connection = repository.getConnection();
+    openedConnections.add(connection);
+    return connection;
+  }
+
+  @Override
+  public void close() {
+    openedConnections.forEach(RepositoryConnection::close);
+    openedConnections.clear();
+  }
 }
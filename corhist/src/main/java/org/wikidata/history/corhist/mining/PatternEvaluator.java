@@ -12,6 +12,7 @@ import org.eclipse.rdf4j.repository.RepositoryConnection;
 import org.eclipse.rdf4j.repository.RepositoryResult;
 
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.Set;
 import java.util.Spliterators;
 import java.util.stream.Collectors;
@@ -60,6 +61,65 @@ public final class PatternEvaluator {
     ).flatMap(statement -> evaluate(pattern, statement, bindingSet));
   }
 
+  /**
+   * Joins the bindings table with the pattern. The result table has the same variables as the input one.
+   */
+  static BindingTable evaluate(StatementPattern pattern, BindingTable table, TermDictionary dictionary, RepositoryConnection connection) {
+    int subjectColumn = getColumnIndex(pattern.getSubjectVar(), table);
+    int predicateColumn = getColumnIndex(pattern.getPredicateVar(), table);
+    int objectColumn = getColumnIndex(pattern.getObjectVar(), table);
+    int contextColumn = getColumnIndex(pattern.getContextVar(), table);
+
+    BindingTable result = new BindingTable(table.getVariables(), table.size());
+    for (int row = 0; row < table.size(); row++) {
+      Iterator<Statement> statements = evaluate(
+              getValue(pattern.getSubjectVar(), subjectColumn, table, row, dictionary),
+              getValue(pattern.getPredicateVar(), predicateColumn, table, row, dictionary),
+              getValue(pattern.getObjectVar(), objectColumn, table, row, dictionary),
+              pattern.getContextVar() == null ? null : getValue(pattern.getContextVar(), contextColumn, table, row, dictionary),
+              connection
+      ).iterator();
+      while (statements.hasNext()) {
+        Statement statement = statements.next();
+        int newRow = result.addRowFrom(table, row);
+        if (!(
+                addToTable(pattern.getSubjectVar(), subjectColumn, statement.getSubject(), result, newRow, dictionary) &&
+                        addToTable(pattern.getPredicateVar(), predicateColumn, statement.getPredicate(), result, newRow, dictionary) &&
+                        addToTable(pattern.getObjectVar(), objectColumn, statement.getObject(), result, newRow, dictionary) &&
+                        addToTable(pattern.getContextVar(), contextColumn, statement.getContext(), result, newRow, dictionary)
+        )) {
+          result.removeLastRow();
+        }
+      }
+    }
+    return result;
+  }
+
+  private static int getColumnIndex(Var var, BindingTable table) {
+    return (var == null || var.isConstant()) ? -1 : table.getColumnIndex(var.getName());
+  }
+
+  private static Value getValue(Var var, int column, BindingTable table, int row, TermDictionary dictionary) {
+    return var.isConstant() ? var.getValue() : dictionary.getValue(table.get(row, column));
+  }
+
+  private static boolean addToTable(Var var, int column, Value value, BindingTable table, int row, TermDictionary dictionary) {
+    if (var == null) {
+      return true;
+    } else if (value == null) {
+      return false;
+    } else if (var.isConstant()) {
+      return value.equals(var.getValue());
+    }
+    int id = table.get(row, column);
+    if (id != TermDictionary.UNBOUND) {
+      return value.equals(dictionary.getValue(id));
+    } else {
+      table.set(row, column, dictionary.intern(value));
+      return true;
+    }
+  }
+
   static Stream<Statement> evaluate(Value subject, Value predicate, Value object, Value context, RepositoryConnection connection) {
     try {
       if (subject != null && !(subject instanceof Resource)) {
@@ -0,0 +1,227 @@
+package org.wikidata.history.corhist.mining;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.Var;
+import org.eclipse.rdf4j.query.algebra.helpers.TupleExprs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.history.corhist.BinaryCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Memory-mapped rule store written by {@link RuleStoreWriter}.
+ * <p>
+ * Opening only reads the segment headers to index the segments by constraint, the rules of a constraint are decoded
+ * when they are requested. An incomplete segment at the end of the file, left by an interrupted write, is ignored.
+ * It is thread safe.
+ * <p>
+ * Closing it drops the mapped regions so that they are unmapped as soon as they are garbage collected.
+ */
+public final class RuleStore implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RuleStore.class);
+  private static final ValueFactory VALUE_FACTORY = SimpleValueFactory.getInstance();
+  private static final int REGION_BITS = 30;
+  private static final long REGION_MASK = (1L << REGION_BITS) - 1;
+
+  private final MappedByteBuffer[] regions;
+  private final Map<IRI, List<Long>> segmentsByConstraint = new LinkedHashMap<>();
+  private int size = 0;
+  private volatile boolean closed = false;
+
+  private RuleStore(MappedByteBuffer[] regions, long fileSize) throws IOException {
+    this.regions = regions;
+
+    Cursor cursor = new Cursor(0);
+    for (byte magicByte : RuleStoreWriter.MAGIC) {
+      if (cursor.readByte() != magicByte) {
+        throw new IOException("This is not a rule store file");
+      }
+    }
+    byte version = cursor.readByte();
+    if (version != RuleStoreWriter.VERSION) {
+      throw new IOException("Not supported rule store version: " + version);
+    }
+    while (cursor.position < fileSize) {
+      long segmentStart = cursor.position;
+      long segmentEnd = fileSize - segmentStart < Long.BYTES ? -1 : segmentStart + Long.BYTES + cursor.readLong();
+      if (segmentEnd > fileSize || segmentEnd < segmentStart) {
+        LOGGER.warn("Ignoring the truncated rule store segment at position " + segmentStart);
+        break;
+      }
+      IRI constraint = VALUE_FACTORY.createIRI(cursor.readString());
+      segmentsByConstraint.computeIfAbsent(constraint, k -> new ArrayList<>()).add(cursor.position);
+      size += cursor.readVarLong();
+      cursor.position = segmentEnd;
+    }
+  }
+
+  public static RuleStore open(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((size + REGION_MASK) >>> REGION_BITS)];
+      for (int i = 0; i < regions.length; i++) {
+        long start = ((long) i) << REGION_BITS;
+        regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_MASK + 1, size - start));
+      }
+      return new RuleStore(regions, size);
+    }
+  }
+
+  /**
+   * Checks if the file starts with the rule store magic bytes
+   */
+  public static boolean isRuleStore(Path file) throws IOException {
+    byte[] start = new byte[RuleStoreWriter.MAGIC.length];
+    try (InputStream input = Files.newInputStream(file)) {
+      return input.read(start) == start.length && Arrays.equals(start, RuleStoreWriter.MAGIC);
+    }
+  }
+
+  public Set<IRI> getConstraints() {
+    return Collections.unmodifiableSet(segmentsByConstraint.keySet());
+  }
+
+  /**
+   * @return the total number of rules in the store
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Decodes the rules of a constraint, ordered by decreasing std confidence
+   */
+  public List<SimpleConstraintRule> getRules(IRI constraint) {
+    List<Long> segments = segmentsByConstraint.getOrDefault(constraint, Collections.emptyList());
+    if (!segments.isEmpty() && closed) {
+      throw new IllegalStateException("The rule store is closed");
+    }
+    List<StoredRule> rules = new ArrayList<>();
+    for (long segment : segments) {
+      readSegment(new Cursor(segment), rules);
+    }
+    rules.sort(Comparator.comparing((StoredRule rule) -> rule.stdConfidence).thenComparing(rule -> rule.support).reversed());
+    List<SimpleConstraintRule> result = new ArrayList<>(rules.size());
+    for (StoredRule rule : rules) {
+      result.add(rule.rule);
+    }
+    return result;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    Arrays.fill(regions, null);
+  }
+
+  private void readSegment(Cursor cursor, List<StoredRule> rules) {
+    int rulesCount = (int) cursor.readVarLong();
+    Value[] terms = new Value[(int) cursor.readVarLong()];
+    for (int i = 0; i < terms.length; i++) {
+      terms[i] = cursor.readTerm(VALUE_FACTORY);
+    }
+    for (int i = 0; i < rulesCount; i++) {
+      float stdConfidence = cursor.readFloat();
+      long support = cursor.readVarLong();
+      Set<StatementPattern> head = new HashSet<>();
+      long headSize = cursor.readVarLong();
+      for (int j = 0; j < headSize; j++) {
+        head.add(cursor.readPattern(terms));
+      }
+      StatementPattern violationBody = cursor.readPattern(terms);
+      List<StatementPattern> contextBody = new ArrayList<>();
+      long contextSize = cursor.readVarLong();
+      for (int j = 0; j < contextSize; j++) {
+        contextBody.add(cursor.readPattern(terms));
+      }
+      rules.add(new StoredRule(new SimpleConstraintRule(head, violationBody, contextBody), stdConfidence, support));
+    }
+  }
+
+  private static final class StoredRule {
+    private final SimpleConstraintRule rule;
+    private final float stdConfidence;
+    private final long support;
+
+    private StoredRule(SimpleConstraintRule rule, float stdConfidence, long support) {
+      this.rule = rule;
+      this.stdConfidence = stdConfidence;
+      this.support = support;
+    }
+  }
+
+  /**
+   * Read position in the mapped file, one per reading thread
+   */
+  private final class Cursor extends BinaryCodec.Decoder {
+    private long position;
+
+    private Cursor(long position) {
+      this.position = position;
+    }
+
+    @Override
+    protected byte readByte() {
+      byte value = regions[(int) (position >>> REGION_BITS)].get((int) (position & REGION_MASK));
+      position++;
+      return value;
+    }
+
+    @Override
+    protected void skip(long length) {
+      position += length;
+    }
+
+    private long readLong() {
+      long value = 0;
+      for (int i = 0; i < 8; i++) {
+        value = (value << 8) | (readByte() & 0xFF);
+      }
+      return value;
+    }
+
+    private float readFloat() {
+      int value = 0;
+      for (int i = 0; i < 4; i++) {
+        value = (value << 8) | (readByte() & 0xFF);
+      }
+      return Float.intBitsToFloat(value);
+    }
+
+    private StatementPattern readPattern(Value[] terms) {
+      Var subject = readPosition(terms);
+      Var predicate = readPosition(terms);
+      Var object = readPosition(terms);
+      Var context = readPosition(terms);
+      return new StatementPattern(subject, predicate, object, context);
+    }
+
+    private Var readPosition(Value[] terms) {
+      byte kind = readByte();
+      switch (kind) {
+        case RuleStoreWriter.ABSENT_POSITION:
+          return null;
+        case RuleStoreWriter.VARIABLE_POSITION:
+          return new Var(readString());
+        case RuleStoreWriter.CONSTANT_POSITION:
+          return TupleExprs.createConstVar(terms[(int) readVarLong()]);
+        default:
+          throw new IllegalStateException("Unknown pattern position kind: " + kind);
+      }
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package org.wikidata.history.corhist.mining;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.Var;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.history.corhist.BinaryCodec;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Appends rules to a rule store file (see {@link RuleStore}).
+ * <p>
+ * File layout: the magic bytes "CVRS" and a version byte then segments, each one containing the rules of a constraint:
+ * <ul>
+ * <li>the segment size in bytes after this field as a 8 bytes long</li>
+ * <li>the constraint IRI and the number of rules</li>
+ * <li>the segment term dictionary: its size then each term as a kind byte and strings</li>
+ * <li>each rule: its std confidence as a float, its support, its head patterns, its violation body and its context patterns</li>
+ * </ul>
+ * Integers, strings and terms are encoded with {@link BinaryCodec}
+ * and a pattern as the four positions, each one being absent, a variable name or a term id.
+ * Segments are self-contained so a file could be appended to by later runs.
+ * An incomplete segment left at the end of the file by an interrupted run is truncated before appending.
+ */
+final class RuleStoreWriter implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RuleStoreWriter.class);
+
+  static final byte[] MAGIC = new byte[]{'C', 'V', 'R', 'S'};
+  static final byte VERSION = 1;
+
+  static final byte ABSENT_POSITION = 0;
+  static final byte VARIABLE_POSITION = 1;
+  static final byte CONSTANT_POSITION = 2;
+
+  private final OutputStream output;
+
+  RuleStoreWriter(Path file) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      long end = completeSegmentsEnd(channel);
+      if (end < channel.size()) {
+        LOGGER.warn("Truncating the incomplete rule store segment at the end of " + file);
+        channel.truncate(end);
+      }
+      channel.position(end);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    output = new BufferedOutputStream(Channels.newOutputStream(channel));
+    if (channel.position() == 0) {
+      output.write(MAGIC);
+      output.write(VERSION);
+      output.flush();
+    }
+  }
+
+  /**
+   * @return the position after the last complete segment of the file or 0 if the file header itself is incomplete
+   */
+  private static long completeSegmentsEnd(FileChannel channel) throws IOException {
+    long fileSize = channel.size();
+    ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 1);
+    if (fileSize < header.capacity()) {
+      return 0;
+    }
+    readFully(channel, header, 0);
+    for (byte magicByte : MAGIC) {
+      if (header.get() != magicByte) {
+        throw new IOException("This is not a rule store file");
+      }
+    }
+    byte version = header.get();
+    if (version != VERSION) {
+      throw new IOException("Not supported rule store version: " + version);
+    }
+    long position = header.capacity();
+    ByteBuffer segmentSize = ByteBuffer.allocate(Long.BYTES);
+    while (fileSize - position >= Long.BYTES) {
+      segmentSize.clear();
+      readFully(channel, segmentSize, position);
+      long segmentEnd = position + Long.BYTES + segmentSize.getLong();
+      if (segmentEnd > fileSize || segmentEnd < position) {
+        break;
+      }
+      position = segmentEnd;
+    }
+    return position;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+    buffer.flip();
+  }
+
+  /**
+   * Writes the segment of a constraint rules and flushes it
+   */
+  synchronized void write(IRI constraint, List<ConstraintRule> rules) throws IOException {
+    Map<Value, Integer> termIds = new LinkedHashMap<>();
+    ByteArrayOutputStream rulesBuffer = new ByteArrayOutputStream();
+    DataOutputStream rulesOutput = new DataOutputStream(rulesBuffer);
+    for (ConstraintRule rule : rules) {
+      rulesOutput.writeFloat(rule.getStdConfidence());
+      BinaryCodec.writeVarLong(rulesOutput, rule.getSupport());
+      BinaryCodec.writeVarLong(rulesOutput, rule.getHead().size());
+      for (StatementPattern pattern : rule.getHead()) {
+        writePattern(rulesOutput, pattern, termIds);
+      }
+      writePattern(rulesOutput, rule.getViolationBody(), termIds);
+      BinaryCodec.writeVarLong(rulesOutput, rule.getContextBody().size());
+      for (StatementPattern pattern : rule.getContextBody()) {
+        writePattern(rulesOutput, pattern, termIds);
+      }
+    }
+
+    ByteArrayOutputStream segmentBuffer = new ByteArrayOutputStream();
+    BinaryCodec.writeString(segmentBuffer, constraint.stringValue());
+    BinaryCodec.writeVarLong(segmentBuffer, rules.size());
+    BinaryCodec.writeVarLong(segmentBuffer, termIds.size());
+    for (Value term : termIds.keySet()) {
+      BinaryCodec.writeTerm(segmentBuffer, term);
+    }
+    rulesBuffer.writeTo(segmentBuffer);
+
+    new DataOutputStream(output).writeLong(segmentBuffer.size());
+    segmentBuffer.writeTo(output);
+    output.flush();
+  }
+
+  private static void writePattern(OutputStream output, StatementPattern pattern, Map<Value, Integer> termIds) throws IOException {
+    writePosition(output, pattern.getSubjectVar(), termIds);
+    writePosition(output, pattern.getPredicateVar(), termIds);
+    writePosition(output, pattern.getObjectVar(), termIds);
+    writePosition(output, pattern.getContextVar(), termIds);
+  }
+
+  private static void writePosition(OutputStream output, Var var, Map<Value, Integer> termIds) throws IOException {
+    if (var == null) {
+      output.write(ABSENT_POSITION);
+    } else if (var.isConstant()) {
+      output.write(CONSTANT_POSITION);
+      BinaryCodec.writeVarLong(output, termIds.computeIfAbsent(var.getValue(), k -> termIds.size()));
+    } else {
+      output.write(VARIABLE_POSITION);
+      BinaryCodec.writeString(output, var.getName());
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    output.close();
+  }
+}
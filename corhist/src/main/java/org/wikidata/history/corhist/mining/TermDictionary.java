@@ -0,0 +1,54 @@
+package org.wikidata.history.corhist.mining;
+
+import org.eclipse.rdf4j.model.Value;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps RDF values to dense int ids in order to store bindings as primitive rows.
+ * <p>
+ * Equal values get the same id and {@link #getValue(int)} always returns the first interned copy.
+ * It is thread safe.
+ */
+final class TermDictionary {
+
+  static final int UNBOUND = -1;
+
+  private final Map<Value, Integer> ids = new ConcurrentHashMap<>();
+  private volatile Value[] values = new Value[1024];
+  private int size = 0;
+
+  int intern(Value value) {
+    Integer id = ids.get(value);
+    if (id != null) {
+      return id;
+    }
+    synchronized (this) {
+      id = ids.get(value);
+      if (id != null) {
+        return id;
+      }
+      Value[] newValues = values;
+      if (size == newValues.length) {
+        newValues = Arrays.copyOf(newValues, 2 * newValues.length);
+      }
+      newValues[size] = value;
+      values = newValues;
+      ids.put(value, size);
+      return size++;
+    }
+  }
+
+  /**
+   * @return the id of the value or {@link #UNBOUND} if it has not been interned yet
+   */
+  int getId(Value value) {
+    return ids.getOrDefault(value, UNBOUND);
+  }
+
+  Value getValue(int id) {
+    return (id == UNBOUND) ? null : values[id];
+  }
+}
@@ -3,6 +3,7 @@ package org.wikidata.history.corhist.mining;
 import org.wikidata.history.corhist.dataset.ConstraintViolationCorrection;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -37,21 +38,34 @@ class TuningMiner {
       crossValidationSet = corrections;
     }
 
-    // We do the cross validation
-    List<ConstraintRule> bestRules = miner.mine(trainSet);
-    float bestF1 = evaluator.evaluate(bestRules, crossValidationSet).getF1();
+    // We do the cross validation, all the std confidence thresholds being evaluated at once
+    List<ConstraintRule> rules = miner.mine(trainSet);
+    float[] thresholds = stdConfidenceThresholds();
+    Evaluation[] evaluations = evaluator.evaluate(rules, crossValidationSet, thresholds);
 
-    List<ConstraintRule> currentRules = bestRules;
-    for (float newStdConfidence = Miner.MIN_STD_CONFIDENCE + 0.05f; newStdConfidence <= 1; newStdConfidence += 0.05f) {
-      float filterStdConfidence = newStdConfidence;
-      currentRules = currentRules.stream().filter(rule -> rule.getStdConfidence() >= filterStdConfidence).collect(Collectors.toList());
-      float newF1 = evaluator.evaluate(currentRules, crossValidationSet).getF1();
-      if (newF1 > bestF1) {
-        bestRules = currentRules;
-        bestF1 = newF1;
+    float bestThreshold = thresholds[0];
+    float bestF1 = evaluations[0].getF1();
+    for (int i = 1; i < evaluations.length; i++) {
+      if (evaluations[i].getF1() > bestF1) {
+        bestThreshold = thresholds[i];
+        bestF1 = evaluations[i].getF1();
       }
     }
 
-    return bestRules;
+    float filterStdConfidence = bestThreshold;
+    return rules.stream().filter(rule -> rule.getStdConfidence() >= filterStdConfidence).collect(Collectors.toList());
+  }
+
+  /**
+   * No filtering then the std confidence thresholds from MIN_STD_CONFIDENCE + 0.05 to 1 by steps of 0.05
+   */
+  private static float[] stdConfidenceThresholds() {
+    float[] thresholds = new float[1];
+    thresholds[0] = Float.NEGATIVE_INFINITY;
+    for (float newStdConfidence = Miner.MIN_STD_CONFIDENCE + 0.05f; newStdConfidence <= 1; newStdConfidence += 0.05f) {
+      thresholds = Arrays.copyOf(thresholds, thresholds.length + 1);
+      thresholds[thresholds.length - 1] = newStdConfidence;
+    }
+    return thresholds;
   }
 }
@@ -0,0 +1,164 @@
+package org.wikidata.history.corhist.dataset;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.XMLSchema;
+import org.junit.Test;
+import org.wikidata.history.sparql.Vocabulary;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class BinaryCorrectionsFormatTest {
+
+  private static final ValueFactory VALUE_FACTORY = SimpleValueFactory.getInstance();
+  private static final Constraint CONSTRAINT = new Constraint(entity("Q1"), entity("P1"), entity("Q2"));
+  private static final Constraint OTHER_CONSTRAINT = new Constraint(entity("Q3"), entity("P1"), entity("Q2"));
+
+  @Test
+  public void testStreamRoundTrip() throws IOException {
+    List<ConstraintViolationCorrection> corrections = buildCorrections();
+    Path file = write(corrections);
+    try (Stream<ConstraintViolationCorrection> read = CorrectionsFormat.BINARY.read(file, VALUE_FACTORY, constraints())) {
+      assertSameCorrections(corrections, read.collect(Collectors.toList()));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testMappedRoundTrip() throws IOException {
+    List<ConstraintViolationCorrection> corrections = buildCorrections();
+    Path file = write(corrections);
+    try {
+      MappedCorrectionsFile mappedFile = MappedCorrectionsFile.open(file, VALUE_FACTORY);
+      assertEquals(corrections.size(), mappedFile.size());
+      assertSameCorrections(corrections, mappedFile.getCorrections(IntStream.range(0, mappedFile.size()).toArray(), constraints()));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testMappedConcurrentReads() throws IOException {
+    List<ConstraintViolationCorrection> corrections = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      corrections.addAll(buildCorrections());
+    }
+    Path file = write(corrections);
+    try {
+      MappedCorrectionsFile mappedFile = MappedCorrectionsFile.open(file, VALUE_FACTORY);
+      List<ConstraintViolationCorrection> view = mappedFile.getCorrections(IntStream.range(0, mappedFile.size()).toArray(), constraints());
+      assertSameCorrections(corrections, IntStream.range(0, view.size()).parallel()
+              .mapToObj(view::get)
+              .collect(Collectors.toList()));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testUnknownConstraintsAreSkipped() throws IOException {
+    List<ConstraintViolationCorrection> corrections = buildCorrections();
+    corrections.add(1, new ConstraintViolationCorrection(
+            OTHER_CONSTRAINT,
+            VALUE_FACTORY.createStatement(entity("Q5"), entity("P1"), entity("Q6")),
+            Collections.singleton(VALUE_FACTORY.createStatement(entity("Q5"), entity("P1"), entity("Q6"), Vocabulary.HISTORY_DELETION)),
+            revision(12)
+    ));
+    List<ConstraintViolationCorrection> known = Arrays.asList(corrections.get(0), corrections.get(2));
+    Path file = write(corrections);
+    try (Stream<ConstraintViolationCorrection> read = CorrectionsFormat.BINARY.read(file, VALUE_FACTORY, constraints())) {
+      assertSameCorrections(known, read.collect(Collectors.toList()));
+      assertSameCorrections(known, MappedCorrectionsFile.open(file, VALUE_FACTORY).getCorrections(new int[]{0, 1, 2}, constraints()));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testMappedTermIds() throws IOException {
+    Path file = write(buildCorrections());
+    try {
+      MappedCorrectionsFile mappedFile = MappedCorrectionsFile.open(file, VALUE_FACTORY);
+      for (Value term : Arrays.asList(
+              CONSTRAINT.getId(),
+              Vocabulary.HISTORY_DELETION,
+              VALUE_FACTORY.createLiteral("\u00e9t\u00e9", "fr"),
+              VALUE_FACTORY.createLiteral("42", XMLSchema.INTEGER),
+              VALUE_FACTORY.createBNode("b1")
+      )) {
+        assertEquals(term, mappedFile.getTerm(mappedFile.getTermId(term).getAsInt()));
+      }
+      assertFalse(mappedFile.getTermId(OTHER_CONSTRAINT.getId()).isPresent());
+      assertFalse(mappedFile.getTermId(VALUE_FACTORY.createLiteral("42")).isPresent());
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /**
+   * Corrections using all the kinds of terms and revision ids needing multiple varint bytes
+   */
+  private static List<ConstraintViolationCorrection> buildCorrections() {
+    List<ConstraintViolationCorrection> corrections = new ArrayList<>();
+    corrections.add(new ConstraintViolationCorrection(
+            CONSTRAINT,
+            VALUE_FACTORY.createStatement(entity("Q10"), entity("P1"), VALUE_FACTORY.createLiteral("été", "fr")),
+            new HashSet<>(Arrays.asList(
+                    VALUE_FACTORY.createStatement(entity("Q10"), entity("P1"), VALUE_FACTORY.createLiteral("été", "fr"), Vocabulary.HISTORY_DELETION),
+                    VALUE_FACTORY.createStatement(entity("Q10"), entity("P2"), VALUE_FACTORY.createLiteral("42", XMLSchema.INTEGER), Vocabulary.HISTORY_ADDITION)
+            )),
+            revision(1)
+    ));
+    corrections.add(new ConstraintViolationCorrection(
+            CONSTRAINT,
+            VALUE_FACTORY.createStatement(VALUE_FACTORY.createBNode("b1"), entity("P1"), entity("Q11")),
+            Collections.singleton(VALUE_FACTORY.createStatement(VALUE_FACTORY.createBNode("b1"), entity("P1"), entity("Q11"), Vocabulary.HISTORY_DELETION)),
+            revision(123456789012L)
+    ));
+    return corrections;
+  }
+
+  private static Path write(List<ConstraintViolationCorrection> corrections) throws IOException {
+    Path file = Files.createTempFile("corrections", ".bin");
+    try (CorrectionsWriter writer = CorrectionsFormat.BINARY.newWriter(file)) {
+      for (ConstraintViolationCorrection correction : corrections) {
+        writer.write(correction);
+      }
+    }
+    return file;
+  }
+
+  private static Map<IRI, Constraint> constraints() {
+    return Collections.singletonMap(CONSTRAINT.getId(), CONSTRAINT);
+  }
+
+  private static void assertSameCorrections(List<ConstraintViolationCorrection> expected, List<ConstraintViolationCorrection> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i).getConstraint().getId(), actual.get(i).getConstraint().getId());
+      assertEquals(expected.get(i).getTargetTriple(), actual.get(i).getTargetTriple());
+      assertEquals(expected.get(i).getCorrection(), actual.get(i).getCorrection());
+      assertEquals(expected.get(i).getCorrectionRevision(), actual.get(i).getCorrectionRevision());
+    }
+  }
+
+  private static IRI entity(String id) {
+    return VALUE_FACTORY.createIRI("http://www.wikidata.org/entity/", id);
+  }
+
+  private static IRI revision(long id) {
+    return VALUE_FACTORY.createIRI(Vocabulary.REVISION_NAMESPACE, Long.toString(id));
+  }
+}
@@ -0,0 +1,151 @@
+package org.wikidata.history.corhist.dataset;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.junit.Test;
+import org.wikidata.history.sparql.Vocabulary;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConstraintViolationCorrectionLookupTest {
+
+  private static final ValueFactory VALUE_FACTORY = SimpleValueFactory.getInstance();
+  private static final String HISTORY_NAMESPACE = "http://wikiba.se/history/ontology#";
+  private static final IRI AUTHOR = VALUE_FACTORY.createIRI("http://schema.org/author");
+  private static final IRI IS_BASED_ON = VALUE_FACTORY.createIRI("http://schema.org/isBasedOn");
+  private static final IRI ADDITIONS = VALUE_FACTORY.createIRI(HISTORY_NAMESPACE, "additions");
+  private static final IRI DELETIONS = VALUE_FACTORY.createIRI(HISTORY_NAMESPACE, "deletions");
+  private static final IRI PREVIOUS_REVISION = VALUE_FACTORY.createIRI(HISTORY_NAMESPACE, "previousRevision");
+  private static final IRI GLOBAL_STATE = VALUE_FACTORY.createIRI(HISTORY_NAMESPACE, "globalState");
+  private static final IRI P1 = Vocabulary.toDirectProperty(entity("P1"));
+  private static final IRI P2 = Vocabulary.toDirectProperty(entity("P2"));
+  private static final IRI P3 = Vocabulary.toDirectProperty(entity("P3"));
+
+  @Test
+  public void testBatchedExpansionMatchesPerCandidateExpansion() {
+    Repository repository = buildFixture();
+    Map<Statement, Pair<Set<Statement>, IRI>> perCandidate = findCorrections(repository, 1, false);
+    assertEquals(perCandidate, findCorrections(repository, 1, true));
+    assertEquals(perCandidate, findCorrections(repository, 3, true));
+
+    //The same author adds a value in the same revision
+    assertEquals(
+            new HashSet<>(Arrays.asList(
+                    VALUE_FACTORY.createStatement(entity("Q1"), P1, entity("Q10"), Vocabulary.HISTORY_DELETION),
+                    VALUE_FACTORY.createStatement(entity("Q1"), P1, entity("Q12"), Vocabulary.HISTORY_ADDITION)
+            )),
+            perCandidate.get(VALUE_FACTORY.createStatement(entity("Q1"), P1, entity("Q10"))).getLeft()
+    );
+    //The same author moves the value to an other property in the next revision
+    Pair<Set<Statement>, IRI> nextRevisionCorrection = perCandidate.get(VALUE_FACTORY.createStatement(entity("Q2"), P1, entity("Q20")));
+    assertEquals(
+            new HashSet<>(Arrays.asList(
+                    VALUE_FACTORY.createStatement(entity("Q2"), P2, entity("Q21"), Vocabulary.HISTORY_DELETION),
+                    VALUE_FACTORY.createStatement(entity("Q2"), P3, entity("Q21"), Vocabulary.HISTORY_ADDITION)
+            )),
+            nextRevisionCorrection.getLeft()
+    );
+    assertEquals(revision(4), nextRevisionCorrection.getRight());
+    //Ambiguous expansions and the ones by other authors are ignored
+    assertEquals(1, perCandidate.get(VALUE_FACTORY.createStatement(entity("Q3"), P1, entity("Q30"))).getLeft().size());
+    assertEquals(1, perCandidate.get(VALUE_FACTORY.createStatement(entity("Q4"), P1, entity("Q40"))).getLeft().size());
+  }
+
+  private static Map<Statement, Pair<Set<Statement>, IRI>> findCorrections(Repository repository, int parallelism, boolean batchExpansion) {
+    Map<IRI, List<Value>> parameters = new HashMap<>();
+    parameters.put(QueriesForConstraintCorrectionsBuilder.PROPERTY_PARAMETER, Collections.singletonList(entity("P2")));
+    Constraint constraint = new Constraint(entity("C1"), entity("P1"), entity("Q21502838"), parameters);
+    try (
+            ConstraintViolationCorrectionLookup lookup = new ConstraintViolationCorrectionLookup("conflict", repository, parallelism, batchExpansion);
+            Stream<ConstraintViolationCorrection> corrections = lookup.findCorrections(constraint)
+    ) {
+      return corrections.collect(Collectors.toMap(
+              ConstraintViolationCorrection::getTargetTriple,
+              correction -> Pair.of(correction.getCorrection(), correction.getCorrectionRevision())
+      ));
+    }
+  }
+
+  /**
+   * Four deletions of P1 values conflicting with a P2 value and with different expansions
+   */
+  private static Repository buildFixture() {
+    Repository repository = new SailRepository(new MemoryStore());
+    repository.init();
+    try (RepositoryConnection connection = repository.getConnection()) {
+      addRevision(connection, 1, 2, "A");
+      connection.add(entity("Q1"), P1, entity("Q10"), graph("global1"));
+      connection.add(entity("Q1"), P2, entity("Q11"), graph("global1"));
+      connection.add(entity("Q1"), P1, entity("Q10"), graph("deletions2"));
+      connection.add(entity("Q1"), P1, entity("Q12"), graph("additions2"));
+
+      addRevision(connection, 3, 4, "B");
+      connection.add(entity("Q2"), P1, entity("Q20"), graph("global3"));
+      connection.add(entity("Q2"), P2, entity("Q21"), graph("global3"));
+      connection.add(entity("Q2"), P2, entity("Q21"), graph("deletions4"));
+      connection.add(revision(5), IS_BASED_ON, revision(4));
+      connection.add(revision(5), AUTHOR, entity("B"));
+      connection.add(revision(5), ADDITIONS, graph("additions5"));
+      connection.add(entity("Q2"), P3, entity("Q21"), graph("additions5"));
+
+      addRevision(connection, 6, 7, "C");
+      connection.add(entity("Q3"), P1, entity("Q30"), graph("global6"));
+      connection.add(entity("Q3"), P2, entity("Q31"), graph("global6"));
+      connection.add(entity("Q3"), P1, entity("Q30"), graph("deletions7"));
+      connection.add(revision(8), IS_BASED_ON, revision(7));
+      connection.add(revision(8), AUTHOR, entity("Z"));
+      connection.add(revision(8), ADDITIONS, graph("additions8"));
+      connection.add(entity("Q3"), P1, entity("Q32"), graph("additions8"));
+
+      addRevision(connection, 9, 10, "D");
+      connection.add(entity("Q4"), P1, entity("Q40"), graph("global9"));
+      connection.add(entity("Q4"), P2, entity("Q41"), graph("global9"));
+      connection.add(entity("Q4"), P1, entity("Q40"), graph("deletions10"));
+      connection.add(entity("Q4"), P1, entity("Q42"), graph("additions10"));
+      connection.add(entity("Q4"), P1, entity("Q43"), graph("additions10"));
+
+      connection.add(entity("Q1"), P1, entity("Q12"), Vocabulary.CURRENT_GLOBAL_STATE);
+      connection.add(entity("Q1"), P2, entity("Q11"), Vocabulary.CURRENT_GLOBAL_STATE);
+      connection.add(entity("Q2"), P1, entity("Q20"), Vocabulary.CURRENT_GLOBAL_STATE);
+      connection.add(entity("Q2"), P3, entity("Q21"), Vocabulary.CURRENT_GLOBAL_STATE);
+      connection.add(entity("Q3"), P1, entity("Q32"), Vocabulary.CURRENT_GLOBAL_STATE);
+      connection.add(entity("Q3"), P2, entity("Q31"), Vocabulary.CURRENT_GLOBAL_STATE);
+      connection.add(entity("Q4"), P1, entity("Q42"), Vocabulary.CURRENT_GLOBAL_STATE);
+      connection.add(entity("Q4"), P1, entity("Q43"), Vocabulary.CURRENT_GLOBAL_STATE);
+      connection.add(entity("Q4"), P2, entity("Q41"), Vocabulary.CURRENT_GLOBAL_STATE);
+    }
+    return repository;
+  }
+
+  private static void addRevision(RepositoryConnection connection, int previousId, int id, String author) {
+    connection.add(revision(previousId), GLOBAL_STATE, graph("global" + previousId));
+    connection.add(revision(id), PREVIOUS_REVISION, revision(previousId));
+    connection.add(revision(id), AUTHOR, entity(author));
+    connection.add(revision(id), ADDITIONS, graph("additions" + id));
+    connection.add(revision(id), DELETIONS, graph("deletions" + id));
+  }
+
+  private static IRI entity(String id) {
+    return VALUE_FACTORY.createIRI("http://www.wikidata.org/entity/", id);
+  }
+
+  private static IRI revision(int id) {
+    return VALUE_FACTORY.createIRI(Vocabulary.REVISION_NAMESPACE, Integer.toString(id));
+  }
+
+  private static IRI graph(String name) {
+    return VALUE_FACTORY.createIRI("http://example.com/graph/", name);
+  }
+}
@@ -0,0 +1,93 @@
+package org.wikidata.history.corhist.game;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.function.IntPredicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PendingCorrectionSamplerTest {
+
+  @Test
+  public void testAddAndRemove() {
+    PendingCorrectionSampler sampler = new PendingCorrectionSampler();
+    for (int id = 0; id < 100; id++) {
+      sampler.add(id, id % 3 == 0 ? "A" : "B");
+    }
+    assertEquals(100, sampler.size());
+    assertEquals(ids(0, 100, id -> id % 3 == 0), new HashSet<>(sampler.sample("A", 1000)));
+
+    //Removals from the start, the middle and the end of the partitions
+    for (int id : new int[]{0, 1, 50, 51, 99, 98}) {
+      sampler.remove(id);
+    }
+    sampler.remove(0);
+    sampler.remove(1000);
+    assertEquals(94, sampler.size());
+    assertEquals(ids(3, 98, id -> id % 3 == 0 && id != 51), new HashSet<>(sampler.sample("A", 1000)));
+    assertEquals(ids(2, 98, id -> id % 3 != 0 && id != 50), new HashSet<>(sampler.sample("B", 1000)));
+    assertTrue(sampler.hasConstraintType("A"));
+    assertFalse(sampler.hasConstraintType("C"));
+  }
+
+  @Test
+  public void testDuplicateAndReAdd() {
+    PendingCorrectionSampler sampler = new PendingCorrectionSampler();
+    sampler.add(1, "A");
+    sampler.add(2, "A");
+    sampler.add(1, "A");
+    assertEquals(2, sampler.size());
+
+    //The id moves to the partition of its new type
+    sampler.add(1, "B");
+    assertEquals(2, sampler.size());
+    assertEquals(Collections.singletonList(2), sampler.sample("A", 10));
+    assertEquals(Collections.singletonList(1), sampler.sample("B", 10));
+
+    sampler.remove(1);
+    assertTrue(sampler.sample("B", 10).isEmpty());
+    sampler.add(1, "A");
+    assertEquals(new HashSet<>(Arrays.asList(1, 2)), new HashSet<>(sampler.sample("A", 10)));
+    assertEquals(2, sampler.size());
+  }
+
+  @Test
+  public void testSample() {
+    PendingCorrectionSampler sampler = new PendingCorrectionSampler();
+    assertTrue(sampler.sample(10).isEmpty());
+    assertTrue(sampler.sample("A", 10).isEmpty());
+    for (int id = 10; id < 40; id++) {
+      sampler.add(id, id < 20 ? "A" : id < 30 ? "B" : "C");
+    }
+
+    //Limits above the set size return all the ids once
+    List<Integer> all = sampler.sample(100);
+    assertEquals(30, all.size());
+    assertEquals(ids(10, 40, id -> true), new HashSet<>(all));
+    assertEquals(10, sampler.sample("B", 100).size());
+
+    List<Integer> some = sampler.sample(5);
+    assertEquals(5, some.size());
+    assertEquals(5, new HashSet<>(some).size());
+
+    //All the partitions are reached by the global draws
+    Set<Integer> drawn = new HashSet<>();
+    for (int i = 0; i < 300; i++) {
+      drawn.addAll(sampler.sample(3));
+    }
+    assertEquals(ids(10, 40, id -> true), drawn);
+  }
+
+  private static Set<Integer> ids(int start, int end, IntPredicate filter) {
+    Set<Integer> ids = new HashSet<>();
+    for (int id = start; id < end; id++) {
+      if (filter.test(id)) {
+        ids.add(id);
+      }
+    }
+    return ids;
+  }
+}
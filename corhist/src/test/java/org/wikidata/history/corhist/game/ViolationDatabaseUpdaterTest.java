@@ -0,0 +1,236 @@
+package org.wikidata.history.corhist.game;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ViolationDatabaseUpdaterTest {
+
+  private static final String ENTITY_DATA_PATH = "/wiki/Special:EntityData/";
+  private static final double REQUESTS_PER_SECOND = 20;
+  private static final int CONCURRENCY = 4;
+
+  @Test
+  public void testLoad() throws Exception {
+    List<String> entityIds = entityIds(60);
+    FakeWikidata wikidata = new FakeWikidata() {
+      @Override
+      Response entityData(String entityId, int attempt) {
+        if (entityId.equals("Q3") && attempt == 1) {
+          return new Response(503, "", "2");
+        }
+        if (entityId.equals("Q4") && attempt == 1) {
+          return new Response(429, "", null);
+        }
+        return super.entityData(entityId, attempt);
+      }
+    };
+    Instant start = Instant.now();
+    try (Fixture fixture = new Fixture(wikidata)) {
+      fixture.database.startBootstrap(0, entityIds);
+      long startNanos = System.nanoTime();
+      fixture.updater.load(entityIds, 0);
+      long elapsedMs = (System.nanoTime() - startNanos) / 1000000;
+
+      assertEquals(60, fixture.database.getBootstrapCursor().get().getPosition());
+      assertEquals(new HashSet<>(entityIds), fixture.database.getEntitiesRefreshedSince(start));
+
+      //Retries of the 429 and 5xx responses, waiting for Retry-After
+      assertEquals(2, wikidata.entityRequests.get("Q3").size());
+      assertTrue(wikidata.entityRequests.get("Q3").get(1) - wikidata.entityRequests.get("Q3").get(0) >= 2000);
+      assertEquals(2, wikidata.entityRequests.get("Q4").size());
+      assertEquals(1, wikidata.entityRequests.get("Q5").size());
+
+      //A full batch is sent as soon as possible then the tail is flushed
+      assertEquals(50, (int) wikidata.checkBatchSizes.get(0));
+      assertEquals(60, wikidata.checkBatchSizes.stream().mapToInt(Integer::intValue).sum());
+      assertTrue(wikidata.checkBatchSizes.stream().allMatch(size -> size <= 50));
+
+      //Pacing: the bucket allows a burst of CONCURRENCY requests then REQUESTS_PER_SECOND
+      assertTrue(wikidata.maxInFlight.get() <= CONCURRENCY);
+      assertTrue(elapsedMs >= (wikidata.requests.get() - CONCURRENCY) * 1000 / REQUESTS_PER_SECOND - 100);
+    }
+  }
+
+  @Test
+  public void testFailedBatchReleasesThePipeline() throws Exception {
+    //More entities than the pipeline size so that the submission would block if the failed entities were not released
+    List<String> entityIds = entityIds(200);
+    FakeWikidata wikidata = new FakeWikidata() {
+      @Override
+      Response checkConstraints(List<String> entityIds) {
+        return new Response(400, "", null);
+      }
+    };
+    Instant start = Instant.now();
+    try (Fixture fixture = new Fixture(wikidata)) {
+      fixture.database.startBootstrap(0, entityIds);
+      fixture.updater.load(entityIds, 0);
+
+      assertEquals(200, wikidata.entityRequests.size());
+      assertEquals(200, wikidata.checkBatchSizes.stream().mapToInt(Integer::intValue).sum());
+      assertTrue(fixture.database.getEntitiesRefreshedSince(start).isEmpty());
+    }
+  }
+
+  @Test
+  public void testOnlyRetryableFailuresStopTheBootstrapCursor() throws Exception {
+    List<String> entityIds = entityIds(60);
+    Set<String> failing = ConcurrentHashMap.newKeySet();
+    failing.add("Q8");
+    FakeWikidata wikidata = new FakeWikidata() {
+      @Override
+      Response entityData(String entityId, int attempt) {
+        //Deleted since the snapshot
+        if (entityId.equals("Q5")) {
+          return new Response(404, "", null);
+        }
+        return super.entityData(entityId, attempt);
+      }
+
+      @Override
+      Response checkConstraints(List<String> entityIds) {
+        List<String> checked = new ArrayList<>(entityIds);
+        checked.removeAll(failing);
+        return super.checkConstraints(checked);
+      }
+    };
+    try (Fixture fixture = new Fixture(wikidata)) {
+      fixture.database.startBootstrap(0, entityIds);
+      fixture.updater.load(entityIds, 0);
+      assertEquals(7, fixture.database.getBootstrapCursor().get().getPosition());
+
+      //The resume only loads the entity that failed with a retryable error
+      failing.clear();
+      fixture.updater.load(entityIds, 7);
+      assertEquals(60, fixture.database.getBootstrapCursor().get().getPosition());
+      assertEquals(1, wikidata.entityRequests.get("Q5").size());
+      assertEquals(2, wikidata.entityRequests.get("Q8").size());
+      assertEquals(1, wikidata.entityRequests.get("Q9").size());
+    }
+  }
+
+  private static List<String> entityIds(int count) {
+    List<String> entityIds = new ArrayList<>();
+    for (int i = 1; i <= count; i++) {
+      entityIds.add("Q" + i);
+    }
+    return entityIds;
+  }
+
+  /**
+   * Stand-in for the Special:EntityData and wbcheckconstraints endpoints, recording the requests
+   */
+  private static class FakeWikidata {
+    private final Map<String, List<Long>> entityRequests = new ConcurrentHashMap<>();
+    private final List<Integer> checkBatchSizes = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    Response entityData(String entityId, int attempt) {
+      return new Response(200, "<http://www.wikidata.org/entity/" + entityId + "> <http://schema.org/name> \"" + entityId + "\" .", null);
+    }
+
+    Response checkConstraints(List<String> entityIds) {
+      StringBuilder body = new StringBuilder("{\"wbcheckconstraints\":{");
+      for (int i = 0; i < entityIds.size(); i++) {
+        body.append(i > 0 ? "," : "").append('"').append(entityIds.get(i)).append("\":{\"claims\":{}}");
+      }
+      return new Response(200, body.append("}}").toString(), null);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+      requests.incrementAndGet();
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+      try {
+        String path = exchange.getRequestURI().getPath();
+        Response response;
+        if (path.startsWith(ENTITY_DATA_PATH)) {
+          String entityId = path.substring(ENTITY_DATA_PATH.length()).replace(".ttl", "");
+          List<Long> times = entityRequests.computeIfAbsent(entityId, k -> Collections.synchronizedList(new ArrayList<>()));
+          times.add(System.nanoTime() / 1000000);
+          response = entityData(entityId, times.size());
+        } else {
+          String query = exchange.getRequestURI().getQuery();
+          List<String> ids = Arrays.asList(query.substring(query.indexOf("id=") + 3).split("&")[0].split("\\|"));
+          checkBatchSizes.add(ids.size());
+          response = checkConstraints(ids);
+        }
+        if (response.retryAfter != null) {
+          exchange.getResponseHeaders().add("Retry-After", response.retryAfter);
+        }
+        byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(response.code, body.length == 0 ? -1 : body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+          output.write(body);
+        }
+      } finally {
+        inFlight.decrementAndGet();
+      }
+    }
+  }
+
+  private static final class Response {
+    private final int code;
+    private final String body;
+    private final String retryAfter;
+
+    private Response(int code, String body, String retryAfter) {
+      this.code = code;
+      this.body = body;
+      this.retryAfter = retryAfter;
+    }
+  }
+
+  /**
+   * An updater with an in-memory database, no rules and the fake Wikidata served locally
+   */
+  private static final class Fixture implements AutoCloseable {
+    private final HttpServer server;
+    private final Path rulesDirectory;
+    private final ViolationDatabase database;
+    private final ViolationDatabaseUpdater updater;
+
+    private Fixture(FakeWikidata wikidata) throws IOException, SQLException {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/", wikidata::handle);
+      server.setExecutor(Executors.newCachedThreadPool());
+      server.start();
+      rulesDirectory = Files.createTempDirectory("rules");
+      database = new ViolationDatabase("mem:" + UUID.randomUUID());
+      updater = new ViolationDatabaseUpdater(
+              database,
+              new CorrectionLookup(new RuleSetManager(rulesDirectory, "*.rules")),
+              HttpUrl.get("http://127.0.0.1:" + server.getAddress().getPort() + "/"),
+              REQUESTS_PER_SECOND,
+              CONCURRENCY
+      );
+    }
+
+    @Override
+    public void close() throws IOException {
+      updater.close();
+      database.close();
+      server.stop(0);
+      Files.delete(rulesDirectory);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package org.wikidata.history.corhist.mining;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.Var;
+import org.eclipse.rdf4j.query.algebra.helpers.TupleExprs;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class RuleStoreTest {
+
+  private static final ValueFactory VALUE_FACTORY = SimpleValueFactory.getInstance();
+  private static final IRI CONSTRAINT = entity("Q1");
+  private static final IRI OTHER_CONSTRAINT = entity("Q2");
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    Path file = Files.createTempFile("rules", ".rules");
+    try {
+      try (RuleStoreWriter writer = new RuleStoreWriter(file)) {
+        writer.write(CONSTRAINT, Collections.singletonList(rule(CONSTRAINT, "Q10")));
+        writer.write(OTHER_CONSTRAINT, Arrays.asList(rule(OTHER_CONSTRAINT, "Q11"), rule(OTHER_CONSTRAINT, "Q12")));
+      }
+      RuleStore store = RuleStore.open(file);
+      assertEquals(3, store.size());
+      assertEquals(new HashSet<>(Arrays.asList(CONSTRAINT, OTHER_CONSTRAINT)), store.getConstraints());
+      assertEquals(Collections.singletonList(rule(CONSTRAINT, "Q10").toSimple()), store.getRules(CONSTRAINT));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testTruncatedSegmentIsIgnoredAndOverwritten() throws IOException {
+    Path file = Files.createTempFile("rules", ".rules");
+    try {
+      try (RuleStoreWriter writer = new RuleStoreWriter(file)) {
+        writer.write(CONSTRAINT, Collections.singletonList(rule(CONSTRAINT, "Q10")));
+        writer.write(OTHER_CONSTRAINT, Collections.singletonList(rule(OTHER_CONSTRAINT, "Q11")));
+      }
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+        channel.truncate(channel.size() - 3);
+      }
+      RuleStore store = RuleStore.open(file);
+      assertEquals(Collections.singleton(CONSTRAINT), store.getConstraints());
+      assertEquals(1, store.size());
+
+      try (RuleStoreWriter writer = new RuleStoreWriter(file)) {
+        writer.write(OTHER_CONSTRAINT, Collections.singletonList(rule(OTHER_CONSTRAINT, "Q12")));
+      }
+      store = RuleStore.open(file);
+      assertEquals(2, store.size());
+      assertEquals(Collections.singletonList(rule(CONSTRAINT, "Q10").toSimple()), store.getRules(CONSTRAINT));
+      assertEquals(Collections.singletonList(rule(OTHER_CONSTRAINT, "Q12").toSimple()), store.getRules(OTHER_CONSTRAINT));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  private static ConstraintRule rule(IRI constraint, String value) {
+    Var s = new Var("s");
+    Var g = new Var("g");
+    BindingTable bindings = new BindingTable(Arrays.asList("s", "o", "g"));
+    bindings.addRow(1, 2, 3);
+    return new ConstraintRule(
+            Collections.singleton(new StatementPattern(s, TupleExprs.createConstVar(entity("P1")), TupleExprs.createConstVar(entity(value)), TupleExprs.createConstVar(entity("Q0")))),
+            new StatementPattern(s, TupleExprs.createConstVar(constraint), new Var("o"), g),
+            Collections.singletonList(new StatementPattern(s, TupleExprs.createConstVar(entity("P2")), TupleExprs.createConstVar(entity(value)), g)),
+            bindings,
+            bindings
+    );
+  }
+
+  private static IRI entity(String id) {
+    return VALUE_FACTORY.createIRI("http://www.wikidata.org/entity/", id);
+  }
+}